@@ -0,0 +1,182 @@
+package org.wonderly.doclets;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Holds the state that has to be shared by all {@link HTMLToTex} conversions
+ * of a single doclet run. Every run creates its own context, so several runs
+ * can happen in the same JVM (even concurrently) without affecting each
+ * other.
+ * 
+ * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
+ */
+public class ConversionContext {
+	private int tblcnt = 0;
+	/** directory for externalized code samples, null to inline them */
+	private String codeDirectory = null;
+	/** code files known to exist */
+	private final Set<String> codeFiles = new HashSet<String>();
+	/** directory for converted images, null to only mention them */
+	private String imageDirectory = null;
+	private ImageAssets images = null;
+
+	/**
+	 * Returns a new number for a table. The numbers are used to produce
+	 * unique names for the latex lengths of a table and therefore have to be
+	 * unique in the whole output document.
+	 */
+	synchronized int nextTableNumber() {
+		return tblcnt++;
+	}
+
+	/**
+	 * Returns the number of tables numbered so far.
+	 */
+	synchronized int tableCount() {
+		return tblcnt;
+	}
+
+	/**
+	 * Reserves <code>count</code> consecutive table numbers and returns the
+	 * first, for the tables of an html file converted later.
+	 */
+	synchronized int reserveTables(int count) {
+		int first = tblcnt;
+		tblcnt += count;
+		return first;
+	}
+
+	/**
+	 * Continues the table numbering after <code>count</code> tables, for
+	 * conversions adding to a document which already contains tables.
+	 */
+	synchronized void setTableCount(int count) {
+		tblcnt = count;
+	}
+
+	/**
+	 * Makes the conversion write the contents of <code>&lt;pre&gt;</code>
+	 * blocks into files in <code>directory</code> instead of converting them
+	 * inline.
+	 */
+	public void setCodeDirectory(String directory) {
+		codeDirectory = directory;
+	}
+
+	/**
+	 * Returns the directory for the contents of <code>&lt;pre&gt;</code>
+	 * blocks or null if they are converted inline.
+	 */
+	public String getCodeDirectory() {
+		return codeDirectory;
+	}
+
+	/**
+	 * Writes a code sample into the code directory and returns the name of
+	 * the file (relative to the latex document). The file is named after a
+	 * hash of its contents, so every distinct sample is written only once,
+	 * even across runs.
+	 */
+	synchronized String writeCode(String code) throws IOException {
+		byte[] bytes = code.getBytes(Charset.forName("UTF-8"));
+		StringBuilder name = new StringBuilder(codeDirectory);
+		if (!codeDirectory.endsWith("/"))
+			name.append('/');
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+			for (int i = 0; i < 8; ++i) {
+				name.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+				name.append(Character.forDigit(digest[i] & 0xf, 16));
+			}
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		name.append(".txt");
+		String filename = name.toString();
+		if (codeFiles.add(filename)) {
+			File file = new File(filename);
+			if (!file.isFile()) {
+				File dir = new File(codeDirectory);
+				if (!dir.isDirectory() && !dir.mkdirs()) {
+					codeFiles.remove(filename);
+					throw new IOException("Couldn't create directory '" + codeDirectory + "'");
+				}
+				/* write to a temporary file first, other runs may write the same file */
+				try {
+					File tmp = File.createTempFile("code", ".tmp", dir);
+					Files.write(tmp.toPath(), bytes);
+					Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.ATOMIC_MOVE);
+				} catch (IOException e) {
+					codeFiles.remove(filename);
+					throw e;
+				}
+			}
+		}
+		return filename;
+	}
+
+	/**
+	 * Makes the conversion turn <code>&lt;img&gt;</code> tags into graphics
+	 * included from PNG files in <code>directory</code>.
+	 */
+	public void setImageDirectory(String directory) {
+		imageDirectory = directory;
+	}
+
+	/**
+	 * Returns the directory for converted images or null if images are only
+	 * mentioned in the text.
+	 */
+	public String getImageDirectory() {
+		return imageDirectory;
+	}
+
+	/**
+	 * Queues the conversion of the image referenced by the <code>src</code>
+	 * attribute of an <code>&lt;img&gt;</code> tag and returns the name of the
+	 * resulting file (relative to the latex document). Returns null if the
+	 * image is not a local file or does not exist.
+	 *
+	 * @param baseDirectory
+	 *            directory relative sources are resolved against, null for
+	 *            the current directory
+	 */
+	String addImage(String src, File baseDirectory) throws IOException {
+		/* images on the web are not downloaded */
+		if (src.indexOf(':') > 1 && !new File(src).isAbsolute())
+			return null;
+		File file = new File(src);
+		if (!file.isAbsolute() && baseDirectory != null)
+			file = new File(baseDirectory, src);
+		if (!file.isFile()) {
+			System.err.println("Warning: Image '" + file + "' not found");
+			return null;
+		}
+		synchronized (this) {
+			if (images == null)
+				images = new ImageAssets(imageDirectory);
+		}
+		return images.add(file);
+	}
+
+	/**
+	 * Waits until all images queued by the conversions are written.
+	 */
+	public void waitForImages() {
+		ImageAssets pending;
+		synchronized (this) {
+			pending = images;
+		}
+		if (pending != null)
+			pending.waitForAll();
+	}
+}
@@ -0,0 +1,1228 @@
+package org.wonderly.doclets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Intermediate model of everything TexDoclet extracted from javadoc:
+ * packages, classes, members, signatures, the already converted comment texts
+ * and the cross-references between them. Everything that depends on the
+ * output configuration (reference wording, label prefixes, macro layout) is
+ * left to the {@link TexRenderer}, so a model can be rendered again without
+ * running javadoc.
+ *
+ * Models can be saved to a compact binary file, read back and merged with
+ * models from other javadoc runs.
+ *
+ * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
+ */
+public class DocModel {
+	private static final int MAGIC = 0x54584d44; /* "TXMD" */
+	private static final int VERSION = 13;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Orders classes the same way TexDoclet always did: by name, ignoring case */
+	static final Comparator<ClassInfo> CLASS_ORDER = new Comparator<ClassInfo>() {
+		public int compare(ClassInfo o1, ClassInfo o2) {
+			return o1.name.compareToIgnoreCase(o2.name);
+		}
+	};
+
+	/** Orders the uses of a class by kind, then by member */
+	static final Comparator<Use> USE_ORDER = new Comparator<Use>() {
+		public int compare(Use o1, Use o2) {
+			int res = o1.kind.compareTo(o2.kind);
+			return res != 0 ? res : o1.text.compareTo(o2.text);
+		}
+	};
+
+	/** Orders models by shard, see {@link #mergeShards} */
+	private static final Comparator<DocModel> SHARD_ORDER = new Comparator<DocModel>() {
+		public int compare(DocModel o1, DocModel o2) {
+			return o1.shard < o2.shard ? -1 : o1.shard > o2.shard ? 1 : 0;
+		}
+	};
+
+	/**
+	 * A reference to another element. References to elements documented in
+	 * the same run have a label, references to elements documented
+	 * elsewhere an URL. If neither is known the reference is plain text.
+	 */
+	public static class Reference {
+		/** text of the reference, already converted to latex */
+		final String text;
+		/** label of the referenced element (without prefix), may be null */
+		final String label;
+		/** URL of external documentation, may be null */
+		final String url;
+
+		Reference(String text, String label, String url) {
+			this.text = text;
+			this.label = label;
+			this.url = url;
+		}
+	}
+
+	/** A piece of a comment */
+	public static class Fragment {
+		static final int TEXT = 0;
+		static final int REFERENCE = 1;
+		static final int INHERITED = 2;
+		static final int FILE = 3;
+
+		final int kind;
+		/**
+		 * latex text; for INHERITED the class the comment is inherited from,
+		 * for FILE the name of the html file
+		 */
+		final String text;
+		/** label for REFERENCE fragments, encoding for FILE fragments */
+		final String label;
+		/** external URL for REFERENCE fragments */
+		final String url;
+		/** the inherited comment for INHERITED fragments */
+		final Comment comment;
+		/** first of the table numbers reserved for a FILE fragment */
+		final int firstTable;
+		/** number of tables of a FILE fragment */
+		final int tables;
+
+		Fragment(int kind, String text, String label, String url, Comment comment) {
+			this(kind, text, label, url, comment, 0, 0);
+		}
+
+		Fragment(int kind, String text, String label, String url, Comment comment, int firstTable, int tables) {
+			this.kind = kind;
+			this.text = text;
+			this.label = label;
+			this.url = url;
+			this.comment = comment;
+			this.firstTable = firstTable;
+			this.tables = tables;
+		}
+	}
+
+	/** A converted comment consisting of several fragments */
+	public static class Comment {
+		final List<Fragment> fragments = new ArrayList<Fragment>();
+
+		void addText(String text) {
+			fragments.add(new Fragment(Fragment.TEXT, text, null, null, null));
+		}
+
+		/**
+		 * Adds a reference; references without label and URL are added as
+		 * plain text.
+		 */
+		void addReference(Reference ref) {
+			if (ref.label == null && ref.url == null)
+				addText(ref.text);
+			else
+				fragments.add(new Fragment(Fragment.REFERENCE, ref.text, ref.label, ref.url, null));
+		}
+
+		void addInherited(String className, Comment comment) {
+			fragments.add(new Fragment(Fragment.INHERITED, className, null, null, comment));
+		}
+
+		/**
+		 * Adds an html document which is converted when rendering, so big
+		 * documents never have to be held in memory. Its tables are numbered
+		 * from <code>firstTable</code> on.
+		 */
+		void addFile(String filename, String encoding, int firstTable, int tables) {
+			fragments.add(new Fragment(Fragment.FILE, filename, encoding, null, null, firstTable, tables));
+		}
+	}
+
+	/** A named comment like the ones of <code>@param</code> or <code>@throws</code> tags */
+	public static class NamedComment {
+		final String name;
+		final Comment comment;
+
+		NamedComment(String name, Comment comment) {
+			this.name = name;
+			this.comment = comment;
+		}
+	}
+
+	/** A member using a type in its signature */
+	public static class Use {
+		/** "field", "parameter" or "return" */
+		final String kind;
+		/** latex text of the member */
+		final String text;
+		/** label of the member (without prefix) */
+		final String label;
+
+		Use(String kind, String text, String label) {
+			this.kind = kind;
+			this.text = text;
+			this.label = label;
+		}
+	}
+
+	/** The members a class inherits from one of its supertypes */
+	public static class Inherited {
+		/** "field" or "method" */
+		final String kind;
+		/** the supertype declaring the members */
+		final Reference from;
+		final List<Reference> members = new ArrayList<Reference>();
+
+		Inherited(String kind, Reference from) {
+			this.kind = kind;
+			this.from = from;
+		}
+	}
+
+	/**
+	 * A field, enum constant, constructor or method. Entries that do not apply
+	 * to a kind of member (like the type of a constructor) are null.
+	 */
+	public static class MemberInfo {
+		String modifiers;
+		/** type of a field or return type of a method */
+		String type;
+		String name;
+		/** label of the member (without prefix) */
+		String label;
+		/** formatted parameter list of constructors and methods */
+		String parameters;
+		Comment comment;
+		/** first sentence of the comment, the comment itself if it has one sentence */
+		Comment summary;
+		final List<NamedComment> paramDocs = new ArrayList<NamedComment>();
+		final List<Comment> returnDocs = new ArrayList<Comment>();
+		final List<NamedComment> throwsDocs = new ArrayList<NamedComment>();
+		final List<Reference> sees = new ArrayList<Reference>();
+		/** block tags converted by taglets, named after the tag */
+		final List<NamedComment> tags = new ArrayList<NamedComment>();
+		/** source of a constructor or method selected for a listing, or null */
+		String listing;
+	}
+
+	/** A class, interface or enum */
+	public static class ClassInfo {
+		/** "class", "interface" or "enum" */
+		String kind;
+		String packageName;
+		String name;
+		Comment comment;
+		/** first sentence of the comment, the comment itself if it has one sentence */
+		Comment summary;
+		final List<Reference> sees = new ArrayList<Reference>();
+		final List<NamedComment> tags = new ArrayList<NamedComment>();
+		/** qualified names of the superclass and the implemented interfaces */
+		final List<String> supertypes = new ArrayList<String>();
+		/** direct subclasses of a class */
+		final List<Reference> subclasses = new ArrayList<Reference>();
+		/** direct subinterfaces of an interface */
+		final List<Reference> subinterfaces = new ArrayList<Reference>();
+		/** all classes implementing an interface */
+		final List<Reference> implementors = new ArrayList<Reference>();
+		/** members using the class in their signature */
+		final List<Use> uses = new ArrayList<Use>();
+		/** inherited fields and methods, grouped by declaring supertype */
+		final List<Inherited> inherited = new ArrayList<Inherited>();
+		final List<MemberInfo> fields = new ArrayList<MemberInfo>();
+		final List<MemberInfo> constructors = new ArrayList<MemberInfo>();
+		final List<MemberInfo> enums = new ArrayList<MemberInfo>();
+		final List<MemberInfo> methods = new ArrayList<MemberInfo>();
+		/** source of the class if it is selected for a listing, or null */
+		String listing;
+
+		/** Returns the label of the class (without prefix) */
+		String label() {
+			return packageName + "." + name;
+		}
+	}
+
+	/** A package with its classes */
+	public static class PackageInfo {
+		String name;
+		Comment comment;
+		/** first sentence of the comment, the comment itself if it has one sentence */
+		Comment summary;
+		final List<Reference> sees = new ArrayList<Reference>();
+		final List<NamedComment> tags = new ArrayList<NamedComment>();
+		final List<ClassInfo> classes = new ArrayList<ClassInfo>();
+	}
+
+	/** the overview documentation, may be null */
+	Comment overview;
+	/** specified packages in output order */
+	final List<PackageInfo> packages = new ArrayList<PackageInfo>();
+	/** classes specified without their package, in output order */
+	final List<ClassInfo> classes = new ArrayList<ClassInfo>();
+	/** index of the shard (a part of a larger run) this model was extracted as */
+	int shard = 0;
+	/**
+	 * number of tables in the comments, including the tables reserved for
+	 * html files converted when rendering
+	 */
+	int tables = 0;
+	/**
+	 * Uses of classes not documented in this model, keyed by qualified class
+	 * name. They are added to the classes when a model documenting them is
+	 * merged.
+	 */
+	final Map<String, List<Use>> foreignUses = new TreeMap<String, List<Use>>();
+
+	/**
+	 * Merges the contents of another model into this one. Packages present in
+	 * both models are combined into one package with the classes, sees and
+	 * tags of both. The tables of <code>other</code> are renumbered to follow
+	 * the tables of this model, so <code>other</code> must not be used
+	 * afterwards.
+	 */
+	public void merge(DocModel other) {
+		other.renumberTables(tables);
+		tables += other.tables;
+		if (overview == null)
+			overview = other.overview;
+		Map<String, PackageInfo> byName = new HashMap<String, PackageInfo>();
+		for (PackageInfo pkg : packages) {
+			byName.put(pkg.name, pkg);
+		}
+		for (PackageInfo pkg : other.packages) {
+			PackageInfo existing = byName.get(pkg.name);
+			if (existing == null) {
+				packages.add(pkg);
+				byName.put(pkg.name, pkg);
+			} else {
+				mergePackage(existing, pkg);
+			}
+		}
+		if (other.classes.size() > 0) {
+			classes.addAll(other.classes);
+			Collections.sort(classes, CLASS_ORDER);
+		}
+		for (Map.Entry<String, List<Use>> entry : other.foreignUses.entrySet()) {
+			addForeignUses(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Combines a package documented by two models: the comment and the
+	 * summary missing in <code>existing</code> are taken from
+	 * <code>pkg</code>, the sees and tags not in <code>existing</code> and
+	 * all classes are added. A different comment of <code>pkg</code> is
+	 * reported and dropped.
+	 */
+	private static void mergePackage(PackageInfo existing, PackageInfo pkg) {
+		if (existing.comment == null)
+			existing.comment = pkg.comment;
+		else if (pkg.comment != null && !sameComment(existing.comment, pkg.comment))
+			System.err.println("Warning: the merged models document package " + pkg.name
+					+ " with different comments, keeping the first one");
+		if (existing.summary == null)
+			existing.summary = pkg.summary;
+		for (Reference see : pkg.sees) {
+			if (!containsReference(existing.sees, see))
+				existing.sees.add(see);
+		}
+		for (NamedComment tag : pkg.tags) {
+			if (!containsTag(existing.tags, tag))
+				existing.tags.add(tag);
+		}
+		existing.classes.addAll(pkg.classes);
+		Collections.sort(existing.classes, CLASS_ORDER);
+	}
+
+	private static boolean containsReference(List<Reference> refs, Reference ref) {
+		for (Reference r : refs) {
+			if (equal(r.text, ref.text) && equal(r.label, ref.label) && equal(r.url, ref.url))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean containsTag(List<NamedComment> tags, NamedComment tag) {
+		for (NamedComment t : tags) {
+			if (t.name.equals(tag.name) && sameComment(t.comment, tag.comment))
+				return true;
+		}
+		return false;
+	}
+
+	/** Checks whether two comments render the same text */
+	private static boolean sameComment(Comment a, Comment b) {
+		if (a == b)
+			return true;
+		if (a == null || b == null || a.fragments.size() != b.fragments.size())
+			return false;
+		for (int i = 0; i < a.fragments.size(); ++i) {
+			Fragment fa = a.fragments.get(i);
+			Fragment fb = b.fragments.get(i);
+			if (fa.kind != fb.kind || !equal(fa.text, fb.text) || !equal(fa.label, fb.label)
+					|| !equal(fa.url, fb.url) || !sameComment(fa.comment, fb.comment))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Merges the models of the shards of a documentation (written by
+	 * separate javadoc runs with <code>-shard</code>) into one model. The
+	 * result does not depend on the order of <code>models</code>: packages
+	 * are ordered by shard and then by their order in the shard, so the
+	 * output equals the one of a single run with the packages of all shards
+	 * in shard order.
+	 */
+	public static DocModel mergeShards(List<DocModel> models) {
+		List<DocModel> sorted = new ArrayList<DocModel>(models);
+		Collections.sort(sorted, SHARD_ORDER);
+		DocModel res = new DocModel();
+		for (DocModel model : sorted) {
+			res.merge(model);
+		}
+		res.link();
+		res.dropForeignUses();
+		return res;
+	}
+
+	/**
+	 * Drops the uses of classes no merged model documents, like the classes
+	 * of the JDK which shards record as well. Only useful after
+	 * {@link #link} on the complete documentation.
+	 */
+	public void dropForeignUses() {
+		foreignUses.clear();
+	}
+
+	/**
+	 * Adds <code>offset</code> to the numbers of the tables in all comments,
+	 * so they don't share latex names with the tables of another model.
+	 */
+	private void renumberTables(int offset) {
+		if (offset == 0 || tables == 0)
+			return;
+		TableWalk walk = new TableWalk(offset);
+		walk.comment(overview);
+		for (PackageInfo pkg : packages) {
+			walk.packageInfo(pkg);
+		}
+		walk.classes(classes);
+	}
+
+	/**
+	 * Numbers the tables of all comments from 0 on again, without gaps. The
+	 * tables of the overview and of every package keep being numbered
+	 * consecutively.
+	 */
+	private void compactTables() {
+		tables = moveTables(overview, null, 0);
+		for (PackageInfo pkg : packages) {
+			tables = moveTables(null, pkg, tables);
+		}
+		TableWalk walk = new TableWalk(0);
+		walk.classes(classes);
+		if (walk.count() > 0) {
+			new TableWalk(tables - walk.first()).classes(classes);
+			tables += walk.count();
+		}
+	}
+
+	/**
+	 * Moves the tables of a comment or a package to the numbers from
+	 * <code>target</code> on and returns the number after them.
+	 */
+	private static int moveTables(Comment comment, PackageInfo pkg, int target) {
+		TableWalk range = new TableWalk(0);
+		range.comment(comment);
+		range.packageInfo(pkg);
+		if (range.count() == 0)
+			return target;
+		TableWalk move = new TableWalk(target - range.first());
+		move.comment(comment);
+		move.packageInfo(pkg);
+		return target + range.count();
+	}
+
+	/**
+	 * Walks the comments of elements, adds an offset to the numbers of their
+	 * tables and records the range of the numbers (before adding the offset).
+	 * Comments shared by several elements (like summaries equal to their
+	 * comment) are visited only once.
+	 */
+	private static class TableWalk {
+		private final int offset;
+		/** lowest number and highest number plus one */
+		private final int[] range = { Integer.MAX_VALUE, 0 };
+		private final Set<Comment> done = Collections.newSetFromMap(new IdentityHashMap<Comment, Boolean>());
+
+		TableWalk(int offset) {
+			this.offset = offset;
+		}
+
+		/** Returns the lowest table number seen */
+		int first() {
+			return range[0];
+		}
+
+		/** Returns the size of the range of the table numbers seen */
+		int count() {
+			return Math.max(0, range[1] - range[0]);
+		}
+
+		void packageInfo(PackageInfo pkg) {
+			if (pkg == null)
+				return;
+			comment(pkg.comment);
+			comment(pkg.summary);
+			namedComments(pkg.tags);
+			classes(pkg.classes);
+		}
+
+		void classes(List<ClassInfo> classes) {
+			for (ClassInfo cls : classes) {
+				comment(cls.comment);
+				comment(cls.summary);
+				namedComments(cls.tags);
+				members(cls.fields);
+				members(cls.constructors);
+				members(cls.enums);
+				members(cls.methods);
+			}
+		}
+
+		private void members(List<MemberInfo> members) {
+			for (MemberInfo m : members) {
+				comment(m.comment);
+				comment(m.summary);
+				namedComments(m.paramDocs);
+				for (Comment comment : m.returnDocs) {
+					comment(comment);
+				}
+				namedComments(m.throwsDocs);
+				namedComments(m.tags);
+			}
+		}
+
+		private void namedComments(List<NamedComment> comments) {
+			for (NamedComment named : comments) {
+				comment(named.comment);
+			}
+		}
+
+		void comment(Comment comment) {
+			if (comment == null || !done.add(comment))
+				return;
+			for (int i = 0; i < comment.fragments.size(); ++i) {
+				Fragment f = comment.fragments.get(i);
+				if (f.kind == Fragment.TEXT) {
+					String text = TableInfo.renumber(f.text, offset, range);
+					if (offset != 0)
+						comment.fragments.set(i, new Fragment(f.kind, text, null, null, null));
+				} else if (f.kind == Fragment.FILE && f.tables > 0) {
+					range[0] = Math.min(range[0], f.firstTable);
+					range[1] = Math.max(range[1], f.firstTable + f.tables);
+					if (offset != 0)
+						comment.fragments.set(i, new Fragment(f.kind, f.text, f.label, null, null, f.firstTable
+								+ offset, f.tables));
+				} else if (f.kind == Fragment.INHERITED) {
+					comment(f.comment);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Computes the known subtypes of all classes from their supertypes and
+	 * moves the foreign uses of classes documented in this model to the
+	 * classes. Has to be called again after models were merged.
+	 */
+	public void link() {
+		List<ClassInfo> all = new ArrayList<ClassInfo>(classes);
+		for (PackageInfo pkg : packages) {
+			all.addAll(pkg.classes);
+		}
+		Map<String, List<ClassInfo>> directSubtypes = new HashMap<String, List<ClassInfo>>();
+		for (ClassInfo cls : all) {
+			for (String supertype : cls.supertypes) {
+				List<ClassInfo> subtypes = directSubtypes.get(supertype);
+				if (subtypes == null) {
+					subtypes = new ArrayList<ClassInfo>();
+					directSubtypes.put(supertype, subtypes);
+				}
+				subtypes.add(cls);
+			}
+		}
+		for (ClassInfo cls : all) {
+			linkSubtypes(cls, directSubtypes);
+			List<Use> uses = foreignUses.remove(cls.label());
+			if (uses != null) {
+				cls.uses.addAll(uses);
+				Collections.sort(cls.uses, USE_ORDER);
+			}
+		}
+	}
+
+	/**
+	 * Sets the known subtypes of a class: the direct subclasses of a class;
+	 * the direct subinterfaces and all implementing classes (also indirectly
+	 * through subinterfaces and subclasses) of an interface.
+	 */
+	private static void linkSubtypes(ClassInfo cls, Map<String, List<ClassInfo>> directSubtypes) {
+		cls.subclasses.clear();
+		cls.subinterfaces.clear();
+		cls.implementors.clear();
+		List<ClassInfo> direct = directSubtypes.get(cls.label());
+		if (direct == null)
+			return;
+		if (!cls.kind.equals("interface")) {
+			addClassReferences(direct, cls.subclasses);
+			return;
+		}
+
+		List<ClassInfo> subinterfaces = new ArrayList<ClassInfo>();
+		List<ClassInfo> implementors = new ArrayList<ClassInfo>();
+		for (ClassInfo sub : direct) {
+			if (sub.kind.equals("interface"))
+				subinterfaces.add(sub);
+		}
+		Set<String> visited = new HashSet<String>();
+		List<ClassInfo> queue = new ArrayList<ClassInfo>(direct);
+		while (!queue.isEmpty()) {
+			ClassInfo sub = queue.remove(queue.size() - 1);
+			if (!visited.add(sub.label()))
+				continue;
+			if (!sub.kind.equals("interface"))
+				implementors.add(sub);
+			List<ClassInfo> next = directSubtypes.get(sub.label());
+			if (next != null)
+				queue.addAll(next);
+		}
+		addClassReferences(subinterfaces, cls.subinterfaces);
+		addClassReferences(implementors, cls.implementors);
+	}
+
+	/**
+	 * Adds references to classes sorted by name.
+	 */
+	private static void addClassReferences(List<ClassInfo> classes, List<Reference> refs) {
+		ClassInfo[] sorted = classes.toArray(new ClassInfo[classes.size()]);
+		Arrays.sort(sorted, new Comparator<ClassInfo>() {
+			public int compare(ClassInfo o1, ClassInfo o2) {
+				int res = o1.name.compareToIgnoreCase(o2.name);
+				return res != 0 ? res : o1.label().compareTo(o2.label());
+			}
+		});
+		for (ClassInfo cls : sorted) {
+			refs.add(new Reference(TexEscapes.escape(cls.name), cls.label(), null));
+		}
+	}
+
+	/**
+	 * Replaces the packages of this model with the packages of the same name
+	 * from <code>other</code>. Packages not yet present are added at the end.
+	 * <code>other</code> has to be extracted as a shard, so it records the
+	 * uses of the classes of the other packages in its foreign uses. The uses
+	 * by members of the replaced packages are replaced by the ones of
+	 * <code>other</code>. {@link #link} has to be called afterwards.
+	 *
+	 * The tables of a new package take the numbers of the package it
+	 * replaces if they fit, otherwise numbers after all tables, so the
+	 * tables of the other packages keep their names. Only when the numbers
+	 * run out all tables are numbered again.
+	 *
+	 * @return true if the tables of all packages were numbered again, false
+	 *         if only the ones of the packages of <code>other</code> changed
+	 */
+	public boolean replacePackages(DocModel other) {
+		Set<String> replaced = new HashSet<String>();
+		for (PackageInfo pkg : other.packages) {
+			replaced.add(pkg.name);
+		}
+		Set<String> replacedClasses = new HashSet<String>();
+		for (PackageInfo pkg : packages) {
+			if (!replaced.contains(pkg.name))
+				continue;
+			for (ClassInfo cls : pkg.classes) {
+				replacedClasses.add(cls.label());
+			}
+		}
+
+		/* keep the uses by the remaining packages for the new classes */
+		for (PackageInfo pkg : packages) {
+			boolean isReplaced = replaced.contains(pkg.name);
+			for (ClassInfo cls : pkg.classes) {
+				removeUses(cls.uses, replacedClasses);
+				if (isReplaced && cls.uses.size() > 0)
+					addForeignUses(cls.label(), cls.uses);
+			}
+		}
+		removeClassUses(classes, replacedClasses);
+		for (List<Use> uses : foreignUses.values()) {
+			removeUses(uses, replacedClasses);
+		}
+		for (Map.Entry<String, List<Use>> entry : other.foreignUses.entrySet()) {
+			addForeignUses(entry.getKey(), entry.getValue());
+		}
+
+		if (other.overview != null) {
+			placeTables(other.overview, null, overview, null);
+			overview = other.overview;
+		}
+		for (PackageInfo pkg : other.packages) {
+			boolean found = false;
+			for (int i = 0; i < packages.size(); ++i) {
+				if (packages.get(i).name.equals(pkg.name)) {
+					placeTables(null, pkg, null, packages.get(i));
+					packages.set(i, pkg);
+					found = true;
+					break;
+				}
+			}
+			if (!found) {
+				placeTables(null, pkg, null, null);
+				packages.add(pkg);
+			}
+		}
+		if (tables <= TableInfo.MAX_TABLES)
+			return false;
+		compactTables();
+		return true;
+	}
+
+	/**
+	 * Numbers the tables of a new comment or package: with the numbers of
+	 * the replaced one if they are enough, otherwise with numbers after all
+	 * tables of this model.
+	 */
+	private void placeTables(Comment comment, PackageInfo pkg, Comment replacedComment, PackageInfo replacedPkg) {
+		TableWalk range = new TableWalk(0);
+		range.comment(comment);
+		range.packageInfo(pkg);
+		if (range.count() == 0)
+			return;
+		TableWalk replaced = new TableWalk(0);
+		replaced.comment(replacedComment);
+		replaced.packageInfo(replacedPkg);
+		int target;
+		if (range.count() <= replaced.count()) {
+			target = replaced.first();
+		} else {
+			target = tables;
+			tables += range.count();
+		}
+		moveTables(comment, pkg, target);
+	}
+
+	private static void removeClassUses(List<ClassInfo> classes, Set<String> usingClasses) {
+		for (ClassInfo cls : classes) {
+			removeUses(cls.uses, usingClasses);
+		}
+	}
+
+	/**
+	 * Removes the uses by members of the classes with the given labels.
+	 */
+	private static void removeUses(List<Use> uses, Set<String> usingClasses) {
+		for (Iterator<Use> i = uses.iterator(); i.hasNext();) {
+			String label = i.next().label;
+			int colon = label.indexOf(':');
+			if (colon >= 0 && usingClasses.contains(label.substring(0, colon)))
+				i.remove();
+		}
+	}
+
+	private void addForeignUses(String className, List<Use> added) {
+		List<Use> uses = foreignUses.get(className);
+		if (uses == null)
+			foreignUses.put(className, new ArrayList<Use>(added));
+		else
+			uses.addAll(added);
+	}
+
+	/**
+	 * Returns the labels (without prefix) of all packages, classes and members
+	 * in the model.
+	 */
+	public Set<String> definedLabels() {
+		Set<String> labels = new HashSet<String>();
+		for (PackageInfo pkg : packages) {
+			labels.add(pkg.name);
+			addLabels(pkg.classes, labels);
+		}
+		addLabels(classes, labels);
+		return labels;
+	}
+
+	private static void addLabels(List<ClassInfo> classes, Set<String> labels) {
+		for (ClassInfo cls : classes) {
+			labels.add(cls.label());
+			addMemberLabels(cls.fields, labels);
+			addMemberLabels(cls.constructors, labels);
+			addMemberLabels(cls.enums, labels);
+			addMemberLabels(cls.methods, labels);
+		}
+	}
+
+	private static void addMemberLabels(List<MemberInfo> members, Set<String> labels) {
+		for (MemberInfo m : members) {
+			if (m.label != null)
+				labels.add(m.label);
+		}
+	}
+
+	/**
+	 * Returns what {@link #link} and {@link #replacePackages} set in the
+	 * classes of the packages (known subtypes and uses) by package name.
+	 * A package whose entry changed has to be rendered again, even if its
+	 * own documentation did not change.
+	 */
+	public Map<String, String> packageLinks() {
+		Map<String, String> links = new HashMap<String, String>();
+		for (PackageInfo pkg : packages) {
+			StringBuilder res = new StringBuilder();
+			for (ClassInfo cls : pkg.classes) {
+				res.append(cls.label()).append(':');
+				appendLabels(cls.subclasses, res);
+				appendLabels(cls.subinterfaces, res);
+				appendLabels(cls.implementors, res);
+				for (Use use : cls.uses) {
+					res.append(use.kind).append(' ').append(use.label).append(',');
+				}
+				res.append('\n');
+			}
+			links.put(pkg.name, res.toString());
+		}
+		return links;
+	}
+
+	private static void appendLabels(List<Reference> refs, StringBuilder res) {
+		for (Reference ref : refs) {
+			res.append(ref.label).append(',');
+		}
+		res.append(';');
+	}
+
+	/**
+	 * Writes the model to a file.
+	 */
+	public void write(String filename) throws IOException {
+		OutputStream out = new FileOutputStream(filename);
+		try {
+			write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the model in the binary model format. The stream is compressed
+	 * and strings occurring several times (like type names) are only written
+	 * once.
+	 */
+	public void write(OutputStream stream) throws IOException {
+		GZIPOutputStream zip = new GZIPOutputStream(new BufferedOutputStream(stream));
+		ModelOutput out = new ModelOutput(new DataOutputStream(zip));
+		out.data.writeInt(MAGIC);
+		out.data.writeInt(VERSION);
+		out.writeInt(shard);
+		out.writeInt(tables);
+		out.writeComment(overview);
+		out.writeInt(packages.size());
+		for (PackageInfo pkg : packages) {
+			out.writeString(pkg.name);
+			out.writeComment(pkg.comment);
+			out.writeSummary(pkg.summary, pkg.comment);
+			out.writeReferences(pkg.sees);
+			out.writeNamedComments(pkg.tags);
+			out.writeClasses(pkg.classes);
+		}
+		out.writeClasses(classes);
+		out.writeInt(foreignUses.size());
+		for (Map.Entry<String, List<Use>> entry : foreignUses.entrySet()) {
+			out.writeString(entry.getKey());
+			out.writeUses(entry.getValue());
+		}
+		out.data.flush();
+		zip.finish();
+		zip.flush();
+	}
+
+	/**
+	 * Reads a model from a file.
+	 */
+	public static DocModel read(String filename) throws IOException {
+		InputStream in = new FileInputStream(filename);
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a model written by {@link #write(OutputStream)}.
+	 */
+	public static DocModel read(InputStream stream) throws IOException {
+		ModelInput in = new ModelInput(new DataInputStream(new GZIPInputStream(new BufferedInputStream(stream))));
+		if (in.data.readInt() != MAGIC)
+			throw new IOException("Not a TexDoclet model file");
+		int version = in.data.readInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported TexDoclet model version " + version);
+
+		DocModel model = new DocModel();
+		model.shard = in.readInt();
+		model.tables = in.readInt();
+		model.overview = in.readComment();
+		int npackages = in.readInt();
+		for (int i = 0; i < npackages; ++i) {
+			PackageInfo pkg = new PackageInfo();
+			pkg.name = in.readString();
+			pkg.comment = in.readComment();
+			pkg.summary = in.readSummary(pkg.comment);
+			in.readReferences(pkg.sees);
+			in.readNamedComments(pkg.tags);
+			in.readClasses(pkg.classes);
+			model.packages.add(pkg);
+		}
+		in.readClasses(model.classes);
+		int nforeign = in.readInt();
+		for (int i = 0; i < nforeign; ++i) {
+			String name = in.readString();
+			List<Use> uses = new ArrayList<Use>();
+			in.readUses(uses);
+			model.foreignUses.put(name, uses);
+		}
+		return model;
+	}
+
+	/**
+	 * Encodes the model. Integers are written as variable length numbers,
+	 * strings are written once and referenced by their index afterwards.
+	 */
+	private static class ModelOutput {
+		final DataOutputStream data;
+		final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+		ModelOutput(DataOutputStream data) {
+			this.data = data;
+		}
+
+		void writeInt(int value) throws IOException {
+			while ((value & ~0x7f) != 0) {
+				data.writeByte((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			data.writeByte(value);
+		}
+
+		/* 0 is null, 1 introduces a new string, n >= 2 references string n-2 */
+		void writeString(String s) throws IOException {
+			if (s == null) {
+				writeInt(0);
+				return;
+			}
+			Integer idx = strings.get(s);
+			if (idx != null) {
+				writeInt(idx + 2);
+				return;
+			}
+			strings.put(s, strings.size());
+			byte[] bytes = s.getBytes(UTF8);
+			writeInt(1);
+			writeInt(bytes.length);
+			data.write(bytes);
+		}
+
+		void writeComment(Comment comment) throws IOException {
+			if (comment == null) {
+				writeInt(0);
+				return;
+			}
+			writeInt(comment.fragments.size() + 1);
+			for (Fragment f : comment.fragments) {
+				writeInt(f.kind);
+				writeString(f.text);
+				if (f.kind == Fragment.REFERENCE) {
+					writeString(f.label);
+					writeString(f.url);
+				} else if (f.kind == Fragment.FILE) {
+					writeString(f.label);
+					writeInt(f.firstTable);
+					writeInt(f.tables);
+				} else if (f.kind == Fragment.INHERITED)
+					writeComment(f.comment);
+			}
+		}
+
+		/*
+		 * a summary which is the comment itself is written like an empty
+		 * comment, summaries are never empty
+		 */
+		void writeSummary(Comment summary, Comment comment) throws IOException {
+			if (summary != null && summary == comment)
+				writeInt(1);
+			else
+				writeComment(summary);
+		}
+
+		void writeReferences(List<Reference> refs) throws IOException {
+			writeInt(refs.size());
+			for (Reference ref : refs) {
+				writeString(ref.text);
+				writeString(ref.label);
+				writeString(ref.url);
+			}
+		}
+
+		void writeUses(List<Use> uses) throws IOException {
+			writeInt(uses.size());
+			for (Use use : uses) {
+				writeString(use.kind);
+				writeString(use.text);
+				writeString(use.label);
+			}
+		}
+
+		void writeNamedComments(List<NamedComment> comments) throws IOException {
+			writeInt(comments.size());
+			for (NamedComment c : comments) {
+				writeString(c.name);
+				writeComment(c.comment);
+			}
+		}
+
+		void writeMembers(List<MemberInfo> members) throws IOException {
+			writeInt(members.size());
+			for (MemberInfo m : members) {
+				writeString(m.modifiers);
+				writeString(m.type);
+				writeString(m.name);
+				writeString(m.label);
+				writeString(m.parameters);
+				writeComment(m.comment);
+				writeSummary(m.summary, m.comment);
+				writeNamedComments(m.paramDocs);
+				writeInt(m.returnDocs.size());
+				for (Comment c : m.returnDocs) {
+					writeComment(c);
+				}
+				writeNamedComments(m.throwsDocs);
+				writeReferences(m.sees);
+				writeNamedComments(m.tags);
+				writeString(m.listing);
+			}
+		}
+
+		void writeClasses(List<ClassInfo> classes) throws IOException {
+			writeInt(classes.size());
+			for (ClassInfo cls : classes) {
+				writeString(cls.kind);
+				writeString(cls.packageName);
+				writeString(cls.name);
+				writeComment(cls.comment);
+				writeSummary(cls.summary, cls.comment);
+				writeReferences(cls.sees);
+				writeNamedComments(cls.tags);
+				writeInt(cls.supertypes.size());
+				for (String supertype : cls.supertypes) {
+					writeString(supertype);
+				}
+				writeReferences(cls.subclasses);
+				writeReferences(cls.subinterfaces);
+				writeReferences(cls.implementors);
+				writeUses(cls.uses);
+				writeInt(cls.inherited.size());
+				for (Inherited inherited : cls.inherited) {
+					writeString(inherited.kind);
+					writeString(inherited.from.text);
+					writeString(inherited.from.label);
+					writeReferences(inherited.members);
+				}
+				writeMembers(cls.fields);
+				writeMembers(cls.constructors);
+				writeMembers(cls.enums);
+				writeMembers(cls.methods);
+				writeString(cls.listing);
+			}
+		}
+	}
+
+	/** Decodes what {@link ModelOutput} wrote. */
+	private static class ModelInput {
+		final DataInputStream data;
+		final List<String> strings = new ArrayList<String>();
+
+		ModelInput(DataInputStream data) {
+			this.data = data;
+		}
+
+		int readInt() throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				int b = data.readUnsignedByte();
+				value |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("Malformed number in TexDoclet model");
+		}
+
+		String readString() throws IOException {
+			int code = readInt();
+			if (code == 0)
+				return null;
+			if (code >= 2) {
+				if (code - 2 >= strings.size())
+					throw new IOException("Malformed string reference in TexDoclet model");
+				return strings.get(code - 2);
+			}
+			int len = readInt();
+			byte[] bytes = new byte[len];
+			data.readFully(bytes);
+			String s = new String(bytes, UTF8);
+			strings.add(s);
+			return s;
+		}
+
+		Comment readComment() throws IOException {
+			int n = readInt();
+			if (n == 0)
+				return null;
+			Comment comment = new Comment();
+			for (int i = 0; i < n - 1; ++i) {
+				int kind = readInt();
+				String text = readString();
+				if (kind == Fragment.REFERENCE) {
+					String label = readString();
+					comment.addReference(new Reference(text, label, readString()));
+				} else if (kind == Fragment.INHERITED) {
+					comment.addInherited(text, readComment());
+				} else if (kind == Fragment.FILE) {
+					String encoding = readString();
+					int firstTable = readInt();
+					comment.addFile(text, encoding, firstTable, readInt());
+				} else if (kind == Fragment.TEXT) {
+					comment.addText(text);
+				} else {
+					throw new IOException("Unknown comment fragment " + kind + " in TexDoclet model");
+				}
+			}
+			return comment;
+		}
+
+		Comment readSummary(Comment comment) throws IOException {
+			Comment summary = readComment();
+			return summary != null && summary.fragments.isEmpty() ? comment : summary;
+		}
+
+		void readReferences(List<Reference> refs) throws IOException {
+			int n = readInt();
+			for (int i = 0; i < n; ++i) {
+				String text = readString();
+				String label = readString();
+				refs.add(new Reference(text, label, readString()));
+			}
+		}
+
+		void readUses(List<Use> uses) throws IOException {
+			int n = readInt();
+			for (int i = 0; i < n; ++i) {
+				String kind = readString();
+				String text = readString();
+				uses.add(new Use(kind, text, readString()));
+			}
+		}
+
+		void readNamedComments(List<NamedComment> comments) throws IOException {
+			int n = readInt();
+			for (int i = 0; i < n; ++i) {
+				String name = readString();
+				comments.add(new NamedComment(name, readComment()));
+			}
+		}
+
+		void readMembers(List<MemberInfo> members) throws IOException {
+			int n = readInt();
+			for (int i = 0; i < n; ++i) {
+				MemberInfo m = new MemberInfo();
+				m.modifiers = readString();
+				m.type = readString();
+				m.name = readString();
+				m.label = readString();
+				m.parameters = readString();
+				m.comment = readComment();
+				m.summary = readSummary(m.comment);
+				readNamedComments(m.paramDocs);
+				int nreturns = readInt();
+				for (int r = 0; r < nreturns; ++r) {
+					m.returnDocs.add(readComment());
+				}
+				readNamedComments(m.throwsDocs);
+				readReferences(m.sees);
+				readNamedComments(m.tags);
+				m.listing = readString();
+				members.add(m);
+			}
+		}
+
+		void readClasses(List<ClassInfo> classes) throws IOException {
+			int n = readInt();
+			for (int i = 0; i < n; ++i) {
+				ClassInfo cls = new ClassInfo();
+				cls.kind = readString();
+				cls.packageName = readString();
+				cls.name = readString();
+				cls.comment = readComment();
+				cls.summary = readSummary(cls.comment);
+				readReferences(cls.sees);
+				readNamedComments(cls.tags);
+				int nsupertypes = readInt();
+				for (int t = 0; t < nsupertypes; ++t) {
+					cls.supertypes.add(readString());
+				}
+				readReferences(cls.subclasses);
+				readReferences(cls.subinterfaces);
+				readReferences(cls.implementors);
+				readUses(cls.uses);
+				int ninherited = readInt();
+				for (int h = 0; h < ninherited; ++h) {
+					String kind = readString();
+					String text = readString();
+					Inherited inherited = new Inherited(kind, new Reference(text, readString(), null));
+					readReferences(inherited.members);
+					cls.inherited.add(inherited);
+				}
+				readMembers(cls.fields);
+				readMembers(cls.constructors);
+				readMembers(cls.enums);
+				readMembers(cls.methods);
+				cls.listing = readString();
+				classes.add(cls);
+			}
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package org.wonderly.doclets;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Resolves references to classes documented elsewhere (like the JDK) to URLs.
+ * The packages are read from local <code>element-list</code> or
+ * <code>package-list</code> files as given to the <code>-linkoffline</code>
+ * option of the standard doclet.
+ *
+ * All package names are kept in one sorted array, so a qualified name is
+ * resolved by a binary search for each of its prefixes.
+ *
+ * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
+ */
+public class ExternalLinks {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* packages collected by add() */
+	private final List<String> newPackages = new ArrayList<String>();
+	private final List<Integer> newBases = new ArrayList<Integer>();
+
+	/* sorted index built from the collected packages on first lookup */
+	private String[] packages = new String[0];
+	private int[] packageBases = new int[0];
+	private final List<String> bases = new ArrayList<String>();
+	private final List<Boolean> newStyle = new ArrayList<Boolean>();
+
+	/**
+	 * Adds the packages of the <code>element-list</code> (preferred) or
+	 * <code>package-list</code> file in directory <code>location</code>,
+	 * which are documented at <code>url</code>.
+	 */
+	public void add(String url, String location) throws IOException {
+		File dir = new File(location);
+		File list = new File(dir, "element-list");
+		boolean elementList = true;
+		if (!list.isFile()) {
+			list = new File(dir, "package-list");
+			elementList = false;
+		}
+		if (!list.isFile())
+			throw new IOException("Neither element-list nor package-list found in '" + location + "'");
+
+		if (!url.endsWith("/"))
+			url += "/";
+
+		FileInputStream in = new FileInputStream(list);
+		try {
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int base = addBase(url, elementList);
+
+			/* line breaks and blanks are single bytes in UTF-8, so only the package names are decoded */
+			byte[] bytes = new byte[64];
+			int start = 0;
+			int len = buffer.limit();
+			for (int i = 0; i <= len; ++i) {
+				if (i < len && buffer.get(i) != '\n' && buffer.get(i) != '\r')
+					continue;
+				int end = i;
+				while (start < end && (buffer.get(start) & 0xff) <= ' ')
+					++start;
+				while (end > start && (buffer.get(end - 1) & 0xff) <= ' ')
+					--end;
+				int length = end - start;
+				if (length > bytes.length)
+					bytes = new byte[2 * length];
+				buffer.position(start);
+				buffer.get(bytes, 0, length);
+				start = i + 1;
+				if (length == 0)
+					continue;
+				String line = new String(bytes, 0, length, UTF8);
+				if (line.startsWith("module:")) {
+					/* element-lists of modular APIs put the module into the path */
+					base = addBase(url + line.substring(7) + "/", elementList);
+					continue;
+				}
+				newPackages.add(line);
+				newBases.add(base);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private int addBase(String url, boolean elementList) {
+		bases.add(url);
+		newStyle.add(elementList);
+		return bases.size() - 1;
+	}
+
+	/** Merges the packages collected by add() into the sorted index */
+	private void buildIndex() {
+		int n = packages.length + newPackages.size();
+		Integer[] order = new Integer[n];
+		final String[] names = Arrays.copyOf(packages, n);
+		int[] allBases = Arrays.copyOf(packageBases, n);
+		for (int i = packages.length; i < n; ++i) {
+			names[i] = newPackages.get(i - packages.length);
+			allBases[i] = newBases.get(i - packages.length);
+		}
+		for (int i = 0; i < n; ++i) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				return names[o1].compareTo(names[o2]);
+			}
+		});
+		packages = new String[n];
+		packageBases = new int[n];
+		for (int i = 0; i < n; ++i) {
+			packages[i] = names[order[i]];
+			packageBases[i] = allBases[order[i]];
+		}
+		newPackages.clear();
+		newBases.clear();
+	}
+
+	/**
+	 * Returns the index of the longest known package which is a prefix of
+	 * <code>name</code> or -1.
+	 */
+	private int findPackage(String name) {
+		if (newPackages.size() > 0)
+			buildIndex();
+		for (int end = name.length(); end > 0; end = name.lastIndexOf('.', end - 1)) {
+			int idx = Arrays.binarySearch(packages, name.substring(0, end));
+			if (idx >= 0)
+				return idx;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns true if no external documentation is known at all.
+	 */
+	public boolean isEmpty() {
+		return packages.length == 0 && newPackages.isEmpty();
+	}
+
+	/**
+	 * Returns the URL of the summary page of a package or null if the package
+	 * is not documented externally.
+	 */
+	public String packageURL(String packageName) {
+		int idx = findPackage(packageName);
+		if (idx < 0 || !packages[idx].equals(packageName))
+			return null;
+		return bases.get(packageBases[idx]) + packageName.replace('.', '/') + "/package-summary.html";
+	}
+
+	/**
+	 * Returns the URL of the documentation of a class (or of one of its
+	 * members) or null if the class is not documented externally.
+	 *
+	 * @param qualifiedName
+	 *            qualified name of the class
+	 * @param member
+	 *            name of the member or null
+	 * @param parameterTypes
+	 *            erased, qualified parameter types if the member is a
+	 *            constructor or method; null otherwise
+	 */
+	public String classURL(String qualifiedName, String member, List<String> parameterTypes) {
+		int idx = findPackage(qualifiedName);
+		if (idx < 0)
+			return null;
+		String pkg = packages[idx];
+		if (pkg.length() == qualifiedName.length())
+			return null;
+		int base = packageBases[idx];
+		StringBuilder url = new StringBuilder(bases.get(base));
+		url.append(pkg.replace('.', '/'));
+		url.append('/');
+		url.append(qualifiedName.substring(pkg.length() + 1));
+		url.append(".html");
+		if (member != null) {
+			url.append('#');
+			url.append(member);
+			if (parameterTypes != null) {
+				if (newStyle.get(base)) {
+					/* javadoc 10 and later: #name(int,java.lang.String) */
+					url.append('(');
+					String separator = "";
+					for (String type : parameterTypes) {
+						url.append(separator);
+						url.append(type);
+						separator = ",";
+					}
+					url.append(')');
+				} else {
+					/* older javadocs: #name-int-java.lang.String:A- */
+					url.append('-');
+					for (String type : parameterTypes) {
+						url.append(type.replace("[]", ":A"));
+						url.append('-');
+					}
+				}
+			}
+		}
+		return url.toString();
+	}
+}
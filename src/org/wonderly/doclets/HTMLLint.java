@@ -0,0 +1,193 @@
+package org.wonderly.doclets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.sun.javadoc.ClassDoc;
+import com.sun.javadoc.Doc;
+import com.sun.javadoc.ExecutableMemberDoc;
+import com.sun.javadoc.PackageDoc;
+import com.sun.javadoc.ProgramElementDoc;
+import com.sun.javadoc.RootDoc;
+import com.sun.javadoc.SourcePosition;
+import com.sun.javadoc.Tag;
+
+/**
+ * Checks the html of all comments without producing any output (the
+ * <code>-lint</code> option). The comments are collected from javadoc first
+ * (which is not thread safe) and then checked in parallel. The problems are
+ * reported through javadoc with the position of the commented element.
+ *
+ * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
+ */
+class HTMLLint {
+	/** number of comments checked by one task */
+	private static final int BATCH_SIZE = 64;
+
+	/**
+	 * The texts of the comment of one element.
+	 */
+	private static class Item {
+		final SourcePosition position;
+		final String element;
+		final List<String> texts = new ArrayList<String>();
+
+		Item(SourcePosition position, String element) {
+			this.position = position;
+			this.element = element;
+		}
+	}
+
+	/**
+	 * A problem found in the comment of an element.
+	 */
+	static class Problem implements Comparable<Problem> {
+		final SourcePosition position;
+		final String element;
+		final String message;
+
+		Problem(SourcePosition position, String element, String message) {
+			this.position = position;
+			this.element = element;
+			this.message = message;
+		}
+
+		private String file() {
+			return position != null && position.file() != null ? position.file().getPath() : "";
+		}
+
+		private int line() {
+			return position != null ? position.line() : 0;
+		}
+
+		public int compareTo(Problem o) {
+			int res = file().compareTo(o.file());
+			if (res == 0)
+				res = line() < o.line() ? -1 : line() > o.line() ? 1 : 0;
+			return res;
+		}
+
+		@Override
+		public String toString() {
+			return message + " (in " + element + ")";
+		}
+	}
+
+	private final List<Item> items = new ArrayList<Item>();
+
+	/**
+	 * Checks all documented elements of a javadoc run and reports the problems.
+	 * Returns true if no problems were found.
+	 */
+	static boolean check(RootDoc root) {
+		long start = System.currentTimeMillis();
+		HTMLLint lint = new HTMLLint();
+		lint.collect(root);
+		List<Problem> problems = lint.run(Runtime.getRuntime().availableProcessors());
+		for (Problem problem : problems) {
+			if (problem.position != null)
+				root.printWarning(problem.position, problem.toString());
+			else
+				root.printWarning(problem.toString());
+		}
+		System.out.println("Checked " + lint.items.size() + " comments, found " + problems.size() + " problems in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return problems.isEmpty();
+	}
+
+	private void collect(RootDoc root) {
+		SourcePosition overview = root.position();
+		if (overview != null && overview.file() != null)
+			add(root, "overview");
+		for (PackageDoc pkg : root.specifiedPackages()) {
+			add(pkg, pkg.name());
+		}
+		for (ClassDoc cls : root.classes()) {
+			add(cls, cls.qualifiedName());
+			for (Doc member : cls.enumConstants()) {
+				add(member, name(member));
+			}
+			for (Doc member : cls.fields()) {
+				add(member, name(member));
+			}
+			for (Doc member : cls.constructors()) {
+				add(member, name(member));
+			}
+			for (Doc member : cls.methods()) {
+				add(member, name(member));
+			}
+		}
+	}
+
+	private static String name(Doc d) {
+		String name = ((ProgramElementDoc) d).qualifiedName();
+		if (d instanceof ExecutableMemberDoc)
+			name += ((ExecutableMemberDoc) d).signature();
+		return name;
+	}
+
+	/**
+	 * Adds the text of a comment and of its block tags. Inline tags are kept
+	 * in the text, so html around them is checked as a whole.
+	 */
+	private void add(Doc d, String element) {
+		Item item = new Item(d.position(), element);
+		if (d.commentText().length() > 0)
+			item.texts.add(d.commentText());
+		for (Tag tag : d.tags()) {
+			if (tag.text().length() > 0)
+				item.texts.add(tag.text());
+		}
+		if (!item.texts.isEmpty())
+			items.add(item);
+	}
+
+	/**
+	 * Checks the collected comments on <code>threads</code> threads and
+	 * returns the problems sorted by position.
+	 */
+	private List<Problem> run(int threads) {
+		ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, threads));
+		List<Future<List<Problem>>> results = new ArrayList<Future<List<Problem>>>();
+		final ConversionContext context = new ConversionContext();
+		for (int start = 0; start < items.size(); start += BATCH_SIZE) {
+			final List<Item> batch = items.subList(start, Math.min(items.size(), start + BATCH_SIZE));
+			results.add(workers.submit(new Callable<List<Problem>>() {
+				public List<Problem> call() {
+					List<Problem> problems = new ArrayList<Problem>();
+					for (Item item : batch) {
+						for (String text : item.texts) {
+							for (String message : HTMLToTex.lint(text, context)) {
+								problems.add(new Problem(item.position, item.element, message));
+							}
+						}
+					}
+					return problems;
+				}
+			}));
+		}
+
+		List<Problem> problems = new ArrayList<Problem>();
+		try {
+			for (Future<List<Problem>> result : results) {
+				problems.addAll(result.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Checking the comments was interrupted", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Checking the comments failed", e.getCause());
+		} finally {
+			workers.shutdown();
+		}
+		/* stable, so problems of one element stay in order */
+		Collections.sort(problems);
+		return problems;
+	}
+}
@@ -1,9 +1,19 @@
 package org.wonderly.doclets;
 
 import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.Stack;
 
 import com.sun.javadoc.ClassDoc;
@@ -42,19 +52,75 @@ import com.sun.javadoc.MethodDoc;
  */
 public class HTMLToTex {
 
+	/**
+	 * Converts a standalone piece of html. Use the variants with a
+	 * {@link ConversionContext} argument when the result is part of a bigger
+	 * document.
+	 */
 	public static String convert(String input) {
-		HTMLToTex instance = new HTMLToTex();
-		return instance.convertToTex(input, null);
+		return convert(input, null, new ConversionContext());
 	}
 
 	public static String convert(String input, MethodDoc md) {
-		HTMLToTex instance = new HTMLToTex();
+		return convert(input, md, new ConversionContext());
+	}
+
+	public static String convert(String input, ConversionContext context) {
+		return convert(input, null, context);
+	}
+
+	public static String convert(String input, MethodDoc md, ConversionContext context) {
+		return convert(input, md, null, context);
+	}
+
+	/**
+	 * Converts a html fragment.
+	 *
+	 * @param baseDirectory
+	 *            directory relative image sources are resolved against, null
+	 *            for the current directory
+	 */
+	public static String convert(String input, MethodDoc md, File baseDirectory, ConversionContext context) {
+		HTMLToTex instance = new HTMLToTex(context);
+		instance.baseDirectory = baseDirectory;
 		return instance.convertToTex(input, md);
 	}
-	
-	private HTMLToTex() {
+
+	/**
+	 * Checks a html fragment which may contain inline tags and returns the
+	 * problems found in it. No latex output is built: the output is dropped
+	 * as it is produced, tables are not numbered and code samples and images
+	 * are not written.
+	 */
+	static List<String> lint(String input, ConversionContext context) {
+		HTMLToTex instance = new HTMLToTex(context);
+		instance.inlineTags = true;
+		instance.checkOnly = true;
+		instance.problems = new ArrayList<String>();
+		instance.convertToTex(input, null);
+		return instance.problems;
+	}
+
+	private HTMLToTex(ConversionContext context) {
+		this.context = context;
 	}
 
+	/** end tags which may be left out at the end of the input */
+	private static final Set<String> OPTIONAL_END_TAGS = new HashSet<String>(Arrays.asList("</p>", "</html>"));
+	/** size of the chunks streamed documents are converted in */
+	private static final int CHUNK_SIZE = 8192;
+	/** beyond this tables and <pre> blocks are split without waiting for their end */
+	private static final int MAX_PENDING = 64 * CHUNK_SIZE;
+
+	private final ConversionContext context;
+	/** directory image sources are relative to */
+	private File baseDirectory;
+	/** problems found in the html, null to print them as warnings */
+	private List<String> problems;
+	/** whether only the problems are of interest, see {@link #lint} */
+	private boolean checkOnly;
+	/** whether inline tags have to be handled (they are not split off by javadoc) */
+	private boolean inlineTags;
 	private String str;
 	private int pos;
 	private StringBuffer ret;
@@ -68,7 +134,11 @@ public class HTMLToTex {
 	private Stack<TableInfo> tblstk = new Stack<TableInfo>();
 	private Hashtable<String, String> colors = new Hashtable<String, String>(10);
 	private int colIdx = 0;
-	private TableInfo tblinfo = new TableInfo(null, null, "", 0);
+	private TableInfo tblinfo = new TableInfo(null, null, 0, 0, false);
+	/** number of tables started */
+	private int tables = 0;
+	/** column counts of the tables in <code>str</code> by offset */
+	private Map<Integer, Integer> tableColumns = new HashMap<Integer, Integer>();
 
 	/**
 	 * keeps track of contexts inside the html formatting Saves the apropriate
@@ -80,40 +150,73 @@ public class HTMLToTex {
 	 */
 	private Stack<String> contexts = new Stack<String>();
 	private Stack<String> texContexts = new Stack<String>();
+	/** number of open contexts for each exit string */
+	private Map<String, Integer> openContexts = new HashMap<String, Integer>();
 
 	private void enter(String exitString, String exitTexString) {
 		contexts.push(exitString);
 		texContexts.push(exitTexString);
+		Integer open = openContexts.get(exitString);
+		openContexts.put(exitString, open == null ? 1 : open + 1);
+	}
+
+	/**
+	 * Returns the input around the current position for warnings.
+	 */
+	private String excerpt() {
+		int start = Math.max(0, pos - 60);
+		int end = Math.min(str.length(), pos + 20);
+		return (start > 0 ? "..." : "") + str.substring(start, end) + (end < str.length() ? "..." : "");
+	}
+
+	/**
+	 * Reports a problem in the html at the current position.
+	 */
+	private void warn(String message) {
+		if (problems != null) {
+			problems.add(message + " near \"" + excerpt().replace('\n', ' ').replace('\r', ' ') + "\"");
+		} else {
+			System.err.println("Warning: " + message);
+			System.err.println("Context: " + excerpt());
+		}
 	}
 
+	/**
+	 * Closes the innermost context ending with <code>exitString</code> and
+	 * all contexts inside of it. An empty <code>exitString</code> closes all
+	 * contexts at the end of the input.
+	 */
 	private void leave(String exitString) {
 		/* look for a matching context */
 		int i;
 		if (exitString.equals("")) {
 			i = 0;
+		} else if (!openContexts.containsKey(exitString)) {
+			i = -1;
 		} else {
+			/* all contexts passed here are closed below */
 			for (i = contexts.size() - 1; i >= 0; --i) {
 				String context = contexts.get(i);
 				if (context.equals(exitString))
 					break;
 			}
-			if (i < 0) {
-				System.err.println("Warning: No matching opening tag for '"
-						+ exitString + "'");
-				System.err.println("Context: " + str);
-				return;
-			}
+		}
+		if (i < 0) {
+			warn("No matching opening tag for '" + exitString + "'");
+			return;
 		}
 
 		/* close all surrounding contexts */
 		while (contexts.size() > i) {
 			String tag = contexts.pop();
 			String tex = texContexts.pop();
-			if (i < contexts.size()) {
-				System.err
-						.println("Warning: Missing closing tag '" + tag + "'");
-				System.err.println("Context: " + str);
-			}
+			int open = openContexts.remove(tag);
+			if (open > 1)
+				openContexts.put(tag, open - 1);
+			if (tag.equals("</pre>"))
+				--verbat;
+			if (exitString.equals("") ? tag.startsWith("</") && !OPTIONAL_END_TAGS.contains(tag) : i < contexts.size())
+				warn("Missing closing tag '" + tag + "'");
 			ret.append(tex);
 		}
 	}
@@ -138,9 +241,23 @@ public class HTMLToTex {
 		return true;
 	}
 
+	/**
+	 * Ends all tables which are still open.
+	 */
+	private void closeTables() {
+		while (!tblstk.isEmpty()) {
+			warn("Missing closing tag '</table>'");
+			tblinfo.endTable(ret);
+			tblinfo = tblstk.pop();
+		}
+	}
+
 	private void stackTable(Properties p, StringBuffer ret, String txt, int off) {
+		tblinfo.nestedTable();
 		tblstk.push(tblinfo);
-		tblinfo = new TableInfo(p, ret, txt, off);
+		++tables;
+		int col = TableInfo.countColumns(txt, off, tableColumns);
+		tblinfo = new TableInfo(p, ret, col, checkOnly ? 0 : context.nextTableNumber(), tblstk.size() > 1);
 	}
 
 	private String makeRefKey(String key) {
@@ -167,51 +284,314 @@ public class HTMLToTex {
 		ret = new StringBuffer();
 
 		++textdepth;
-		for (pos = 0; pos < str.length(); ++pos) {
+		convertText();
+		--textdepth;
+
+		/* leave all contexts */
+		closeTables();
+		leave("");
+
+		return ret.toString();
+	}
+
+	/**
+	 * Returns the number of tables the conversion of an html document by
+	 * {@link #convert(Reader, Writer, File, ConversionContext)} numbers. No
+	 * latex output is built and no warnings are printed.
+	 */
+	static int countTables(Reader in) throws IOException {
+		HTMLToTex instance = new HTMLToTex(new ConversionContext());
+		instance.inlineTags = true;
+		instance.checkOnly = true;
+		instance.problems = new ArrayList<String>();
+		instance.convertStream(in, new Writer() {
+			public void write(char[] buf, int off, int len) {
+			}
+
+			public void flush() {
+			}
+
+			public void close() {
+			}
+		});
+		return instance.tables;
+	}
+
+	/**
+	 * Converts a whole html document (like a <code>package.html</code> or an
+	 * overview file) from <code>in</code> and writes the result to
+	 * <code>out</code>. The document is read and converted in chunks of fixed
+	 * size, so it is never held in memory completely. Only the contents of the
+	 * <code>&lt;body&gt;</code> are converted if the document has one.
+	 * Unlike comments processed by javadoc the document may contain inline
+	 * tags like <code>{&#64;code ...}</code> and <code>{&#64;link ...}</code>.
+	 * Relative image sources are resolved against <code>baseDirectory</code>.
+	 */
+	public static void convert(Reader in, Writer out, File baseDirectory, ConversionContext context)
+			throws IOException {
+		HTMLToTex instance = new HTMLToTex(context);
+		instance.baseDirectory = baseDirectory;
+		instance.inlineTags = true;
+		instance.convertStream(in, out);
+	}
+
+	private void convertStream(Reader in, Writer out) throws IOException {
+		ret = new StringBuffer();
+		StringBuilder pending = new StringBuilder();
+		char[] buf = new char[CHUNK_SIZE];
+		/* 1 while looking for the start of the document, 2 while skipping the head */
+		int head = 1;
+		boolean eof = false;
+
+		++textdepth;
+		while (!eof) {
+			int n = in.read(buf);
+			if (n < 0)
+				eof = true;
+			else
+				pending.append(buf, 0, n);
+			if (!eof && pending.length() < CHUNK_SIZE)
+				continue;
+
+			if (head == 1) {
+				String start = pending.toString().trim().toLowerCase();
+				if (start.length() < 9 && !eof)
+					continue;
+				head = start.startsWith("<html") || start.startsWith("<!doctype") ? 2 : 0;
+			}
+			if (head == 2) {
+				int body = indexOfIgnoreCase(pending, "<body", 0);
+				if (body < 0 && !eof)
+					continue;
+				if (body >= 0)
+					pending.delete(0, body);
+				head = 0;
+			}
+
+			int split = eof ? pending.length() : safeSplit(pending, pending.length() < MAX_PENDING);
+			if (split == 0)
+				continue;
+			int end = indexOfIgnoreCase(pending, "</body", 0);
+			if (end >= 0 && end < split) {
+				split = end;
+				eof = true;
+			}
+
+			str = pending.substring(0, split);
+			pending.delete(0, split);
+			convertText();
+			out.write(ret.toString());
+			outputFlushed();
+		}
+		--textdepth;
+
+		closeTables();
+		leave("");
+		out.write(ret.toString());
+	}
+
+	/**
+	 * Empties the output buffer after its contents were written (or dropped
+	 * when checking only).
+	 */
+	private void outputFlushed() {
+		ret.setLength(0);
+		tblinfo.outputFlushed();
+		for (TableInfo t : tblstk) {
+			t.outputFlushed();
+		}
+	}
+
+	private static int indexOfIgnoreCase(CharSequence s, String needle, int from) {
+		for (int i = from; i + needle.length() <= s.length(); ++i) {
+			if (regionMatches(s, i, needle))
+				return i;
+		}
+		return -1;
+	}
+
+	private static int lastIndexOfIgnoreCase(CharSequence s, String needle) {
+		for (int i = s.length() - needle.length(); i >= 0; --i) {
+			if (regionMatches(s, i, needle))
+				return i;
+		}
+		return -1;
+	}
+
+	private static boolean regionMatches(CharSequence s, int off, String needle) {
+		for (int i = 0; i < needle.length(); ++i) {
+			if (Character.toLowerCase(s.charAt(off + i)) != needle.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the position up to which a chunk of a streamed document can be
+	 * converted without cutting a tag, an entity, an inline tag or the first
+	 * rows of a table (which are scanned ahead to count columns and repeated
+	 * in long tables) or a <code>&lt;pre&gt;</code> block (which may be
+	 * written to a file as a whole). Tables and blocks are only considered
+	 * if <code>blocks</code> is true. Returns 0 if more input is needed.
+	 */
+	private static int safeSplit(StringBuilder pending, boolean blocks) {
+		int len = pending.length();
+		int split = len;
+		/* line breaks look at the following character */
+		char last = pending.charAt(len - 1);
+		if (last == '\r' || last == '\n')
+			split = len - 1;
+
+		int lt = pending.lastIndexOf("<");
+		if (lt >= 0 && (lt > len - 8 || pending.indexOf(">", lt) < 0))
+			split = Math.min(split, lt);
+
+		int amp = pending.lastIndexOf("&");
+		if (amp >= 0 && amp > len - 32 && pending.indexOf(";", amp) < 0)
+			split = Math.min(split, amp);
+
+		int inline = pending.lastIndexOf("{@");
+		if (inline >= 0 && pending.indexOf("}", inline) < 0)
+			split = Math.min(split, inline);
+
+		int pre = blocks ? lastIndexOfIgnoreCase(pending, "<pre>") : -1;
+		if (pre >= 0 && indexOfIgnoreCase(pending, "</pre>", pre) < 0)
+			split = Math.min(split, pre);
+
+		int table = blocks ? lastIndexOfIgnoreCase(pending, "<table") : -1;
+		if (table >= 0) {
+			/* the first row (for counting columns) and the header rows (for
+			 * repeating them) have to be converted together */
+			int data = indexOfIgnoreCase(pending, "<td", table);
+			boolean complete = indexOfIgnoreCase(pending, "</table", table) >= 0
+					|| (data >= 0 && (indexOfIgnoreCase(pending, "</tr", data) >= 0
+							|| indexOfIgnoreCase(pending, "<tr", data) >= 0));
+			if (!complete)
+				split = Math.min(split, table);
+		}
+		return split;
+	}
+
+	/**
+	 * Handles an inline tag like <code>{&#64;code ...}</code> in a streamed
+	 * document.
+	 */
+	private void inlineTag() {
+		int depth = 0;
+		int end;
+		for (end = pos; end < str.length(); ++end) {
+			char c = str.charAt(end);
+			if (c == '{') {
+				++depth;
+			} else if (c == '}') {
+				if (--depth == 0)
+					break;
+			}
+		}
+		if (end == str.length())
+			warn("Unterminated inline tag");
+		String tag = str.substring(pos + 2, end);
+		pos = end;
+		String name = tag;
+		String body = "";
+		for (int i = 0; i < tag.length(); ++i) {
+			if (Character.isWhitespace(tag.charAt(i))) {
+				name = tag.substring(0, i);
+				body = tag.substring(i + 1).trim();
+				break;
+			}
+		}
+		if (name.equals("code")) {
+			ret.append("\\texttt{" + literal(body) + "}");
+		} else if (name.equals("link") || name.equals("linkplain")) {
+			/* the label starts at the first space outside of the parameter list */
+			String ref = body;
+			String label = "";
+			for (int i = 0; i < body.length(); ++i) {
+				if (Character.isWhitespace(body.charAt(i)) && body.lastIndexOf(')', i) >= body.lastIndexOf('(', i)) {
+					ref = body.substring(0, i);
+					label = body.substring(i + 1).trim();
+					break;
+				}
+			}
+			if (label.length() > 0) {
+				HTMLToTex nested = new HTMLToTex(context);
+				nested.problems = problems;
+				nested.checkOnly = checkOnly;
+				ret.append(nested.convertToTex(label, null));
+			} else {
+				ref = ref.startsWith("#") ? ref.substring(1) : ref.replace('#', '.');
+				ret.append("\\texttt{" + literal(ref) + "}");
+			}
+		} else {
+			ret.append(literal(body));
+		}
+	}
+
+	/**
+	 * Escapes text which does not contain html.
+	 */
+	private static String literal(String text) {
+		return TexEscapes.escape(text);
+	}
+
+	/**
+	 * Converts <code>str</code>, appending the result to <code>ret</code>.
+	 */
+	private void convertText() {
+		int len = str.length();
+		tableColumns.clear();
+		for (pos = 0; pos < len; ++pos) {
+			if (checkOnly && ret.length() > CHUNK_SIZE)
+				outputFlushed();
+			/* copy text which needs no escaping in one go */
+			int end = pos;
+			while (end < len) {
+				byte kind = TexEscapes.kind(str.charAt(end));
+				if (kind != TexEscapes.PLAIN && (kind != TexEscapes.SPACE || verbat > 0))
+					break;
+				++end;
+			}
+			if (end > pos) {
+				ret.append(str, pos, end);
+				pos = end;
+				if (pos == len)
+					break;
+			}
+
 			char c = str.charAt(pos);
+			if (TexEscapes.kind(c) == TexEscapes.ESCAPE) {
+				ret.append(TexEscapes.replacement(c));
+				continue;
+			}
 			switch (c) {
 			case ' ':
-				if (verbat > 0) {
-					ret.append("\\phantom{ }");
-				} else {
-					ret.append(' ');
-				}
-				break;
-			case '_':
-			case '%':
-			case '$':
-			case '#':
-				ret.append('\\');
-				ret.append((char) c);
-				break;
-			case '^': /* { */
-				ret.append("$\\wedge$");
-				break;
-			case '}':
-				ret.append("$\\}$");
+				ret.append("\\phantom{ }");
 				break;
 			case '{':
-				ret.append("$\\{$");
+				if (inlineTags && startsWith("{@")) {
+					inlineTag();
+				} else {
+					ret.append("$\\{$");
+				}
 				break;
 			case '<':
 				if (match("<pre>")) {
+					if (context.getCodeDirectory() != null && !checkOnly && externalizeCode())
+						break;
 					ret.append("\\texttt{");
 					verbat++;
+					enter("</pre>", "}\n");
 				} else if (match("</pre>")) {
-					verbat--;
-					ret.append("}\n");
-				} else if (str.length() > pos + 4
-						&& str.substring(pos, pos + 2).equalsIgnoreCase("<h") 
-						&& Character.isDigit(str.substring(pos+2, pos+3).charAt(0))) {
-					String headnum = str.substring(pos+2, pos+3);
-					ret.append(String.format("\\headref{%s}{", headnum));
-					enter(String.format("</h%s>", headnum), "}\n");
+					leave("</pre>");
+				} else if (str.length() > pos + 4 && startsWith("<h") && Character.isDigit(str.charAt(pos + 2))) {
+					char headnum = str.charAt(pos + 2);
+					ret.append("\\headref{").append(headnum).append("}{");
+					enter("</h" + headnum + ">", "}\n");
 					pos += 3;
-				} else if (str.length() > pos + 5
-						&& str.substring(pos, pos + 3).equalsIgnoreCase("</h") 
-						&& Character.isDigit(str.substring(pos+3, pos+4).charAt(0))) {
-					String headnum = str.substring(pos+3, pos+4);
-					leave(String.format("</h%s>", headnum));
+				} else if (str.length() > pos + 5 && startsWith("</h") && Character.isDigit(str.charAt(pos + 3))) {
+					char headnum = str.charAt(pos + 3);
+					leave("</h" + headnum + ">");
 					pos += 4;
 				} else if (match("<html>")) {
 					enter("</html>", "");
@@ -236,8 +616,9 @@ public class HTMLToTex {
 					pos = idx;
 				} else if (match("<title>")) {
 					ret.append("\\chapter{");
+					enter("</title>", "}");
 				} else if (match("</title>")) {
-					ret.append("}");
+					leave("</title>");
 				} else if (startsWith("<form")) {
 					Properties p = new Properties();
 					int idx = HTMLToTex.getTagAttrs(str, p, pos + 3);
@@ -275,8 +656,12 @@ public class HTMLToTex {
 					int idx = HTMLToTex.getTagAttrs(str, p, pos + 3);
 					String sz = p.getProperty("size");
 					int size = 1;
-					if (sz != null)
-						size = Integer.parseInt(sz);
+					try {
+						if (sz != null)
+							size = Integer.parseInt(sz);
+					} catch (NumberFormatException e) {
+						/* keep default */
+					}
 					ret.append("\\newline\\rule[2mm]{\\hsize}{"
 							+ (1 * size * .5) + "mm}\\newline\n");
 					pos = idx;
@@ -316,29 +701,43 @@ public class HTMLToTex {
 					Properties p = new Properties();
 					int idx = HTMLToTex.getTagAttrs(str, p, pos + 4);
 					refimg = p.getProperty("src");
-					ret.append("(see image at " + convert(refimg) + ")");
-					pos = idx;
-				} else if (match("</a>")) {
-					if (refurl != null) {
-						ret.append("} ");
-						if (refurl.charAt(0) == '#')
-							ret.append("\\refdefined{"
-									+ refName(makeRefKey(refurl.substring(1)))
-									+ "}");
+					if (refimg != null) {
+						String image = null;
+						if (context.getImageDirectory() != null && !checkOnly) {
+							try {
+								image = context.addImage(refimg, baseDirectory);
+							} catch (IOException e) {
+								System.err.println("Warning: Couldn't resolve image '" + refimg + "': " + e.getMessage());
+							}
+						}
+						if (image != null)
+							ret.append("\\texdocimage{" + image + "}");
 						else
-							ret.append("(at " + convert(refurl) + ")");
+							ret.append("(see image at " + convert(refimg, context) + ")");
 					}
+					pos = idx;
+				} else if (match("</a>")) {
+					leave("</a>");
 				} else if (startsWith("<a")) {
 					Properties p = new Properties();
 					int idx = HTMLToTex.getTagAttrs(str, p, pos + 3);
 					refurl = p.getProperty("href");
 					String refname = p.getProperty("href");
 					pos = idx;
-					if (refurl != null)
+					if (refurl != null) {
 						ret.append("{\\bf ");
-					else if (refname != null)
-						ret.append("\\label{" + refName(makeRefKey(refname))
-								+ "}");
+						if (refurl.startsWith("#"))
+							enter("</a>", "} \\refdefined{"
+									+ refName(makeRefKey(refurl.substring(1)))
+									+ "}");
+						else
+							enter("</a>", "} (at " + convert(refurl, context) + ")");
+					} else {
+						if (refname != null)
+							ret.append("\\label{" + refName(makeRefKey(refname))
+									+ "}");
+						enter("</a>", "");
+					}
 				} else if (startsWith("<ol")) {
 					Properties p = new Properties();
 					int idx = HTMLToTex.getTagAttrs(str, p, pos + 3);
@@ -360,7 +759,7 @@ public class HTMLToTex {
 				} else if (match("</dl>")) {
 					ret.append("\n\\end{itemize}\n");
 				} else if (match("</ol>")) {
-					ret.append("}\n\\end{enumerate}");
+					ret.append("\n\\end{enumerate}");
 				} else if (startsWith("<ul")) {
 					Properties p = new Properties();
 					int idx = HTMLToTex.getTagAttrs(str, p, pos + 3);
@@ -369,8 +768,12 @@ public class HTMLToTex {
 				} else if (match("</ul>")) {
 					ret.append("\\end{itemize}\n");
 				} else if (match("</table>")) {
-					tblinfo.endTable(ret);
-					tblinfo = tblstk.pop();
+					if (tblstk.isEmpty()) {
+						warn("No matching opening tag for '</table>'");
+					} else {
+						tblinfo.endTable(ret);
+						tblinfo = tblstk.pop();
+					}
 				} else if (match("</th>")) {
 					tblinfo.endCol(ret);
 				} else if (match("</td>")) {
@@ -384,33 +787,47 @@ public class HTMLToTex {
 					stackTable(p, ret, str, pos);
 				} else if (startsWith("<tr")) {
 					Properties p = new Properties();
+					if (tblstk.isEmpty())
+						warn("'<tr>' outside of a table");
 					int idx = getTagAttrs(str, p, pos + 3);
 					pos = idx;
-					tblinfo.startRow(ret, p);
-				} else if (startsWith("<tr")) {
+					if (!tblstk.isEmpty())
+						tblinfo.startRow(ret, p);
+				} else if (startsWith("<td")) {
 					Properties p = new Properties();
+					if (tblstk.isEmpty())
+						warn("'<td>' outside of a table");
 					int idx = getTagAttrs(str, p, pos + 3);
 					pos = idx;
-					tblinfo.startCol(ret, p);
+					if (!tblstk.isEmpty())
+						tblinfo.startCol(ret, p);
 				} else if (startsWith("<th")) {
 					Properties p = new Properties();
+					if (tblstk.isEmpty())
+						warn("'<th>' outside of a table");
 					int idx = getTagAttrs(str, p, pos + 3);
 					pos = idx;
-					tblinfo.startHeadCol(ret, p);
+					if (!tblstk.isEmpty())
+						tblinfo.startHeadCol(ret, p);
 				} else if (startsWith("<font")) {
 					Properties p = new Properties();
 					int idx = HTMLToTex.getTagAttrs(str, p, pos + 5);
 					pos = idx;
 					String col = p.getProperty("color");
 					ret.append("{");
+					enter("</font>", "}");
 					if (col != null) {
 						if ("redgreenbluewhiteyellowblackcyanmagenta"
 								.indexOf(col) != -1)
 							ret.append("\\color{" + col + "}");
 						else {
-							if ("abcdefABCDEF0123456789".indexOf(col.charAt(0)) != -1) {
-								Color cc = new Color((int) Long.parseLong(col,
-										16));
+							Color cc = null;
+							try {
+								cc = new Color((int) Long.parseLong(col, 16));
+							} catch (NumberFormatException e) {
+								warn("Unknown color '" + col + "'");
+							}
+							if (cc != null) {
 								String name = colors.get("color" + cc.getRGB());
 								if (name == null) {
 									ret.append("\\definecolor{color" + colIdx
@@ -429,7 +846,7 @@ public class HTMLToTex {
 					}
 
 				} else if (match("</font>")) {
-					ret.append("}");
+					leave("</font>");
 				} else {
 					ret.append("\\textless{}");
 				}
@@ -455,62 +872,133 @@ public class HTMLToTex {
 					}
 				}
 				break;
-			case '/':
-				ret.append("$/$");
-				break;
 			case '&':
-				if (str.length() > pos + 4
-						&& str.substring(pos, pos + 2).equals("&#")) {
-					String it = str.substring(pos + 2);
-					int stp = it.indexOf(';');
-					if (stp > 0) {
-						String v = it.substring(0, stp);
-						int ch = -1;
-						try {
-							ch = Integer.parseInt(v);
-						} catch (NumberFormatException ex) {
-							ch = -1;
-						}
-						if (ch >= 0 && ch < 128) {
-							ret.append("\\verb" + ((char) (ch + 1))
-									+ ((char) ch) + ((char) (ch + 1)));
-						} else {
-							ret.append("\\&\\#" + v);
-						}
-						pos += v.length() + 2;
-					} else {
-						ret.append("\\&\\#");
-						pos++;
-					}
-				} else if (match("&amp;")) {
-					ret.append("\\&");
-				} else if (match("&nbsp;")) {
-					ret.append("\\phantom{ }");
-				} else if (match("&lt;")) {
-					ret.append("\\textless{}");
-				} else if (match("&gt;")) {
-					ret.append("\\textgreater{}");
-				} else {
-					ret.append("\\&");
-				}
-				break;
-			case '>':
-				ret.append("\\textgreater{}");
-				break;
-			case '\\':
-				ret.append("$\\backslash$");
+				entity();
 				break;
 			default:
-				ret.append((char) c);
+				ret.append(c);
 				break;
 			}
 		}
-		--textdepth;
+	}
 
-		/* leave all contexts */
-		leave("");
+	/** end (the ';') of the entity decoded by decodeEntity */
+	private int entityEnd;
 
-		return ret.toString();
+	/**
+	 * Returns the code point of the entity starting at <code>at</code> or -1
+	 * if there is no valid entity. The end of the entity is stored in
+	 * <code>entityEnd</code>.
+	 */
+	private int decodeEntity(int at) {
+		int len = str.length();
+		int start = at + 1;
+		int end = start;
+		int codePoint = -1;
+		if (start < len && str.charAt(start) == '#') {
+			int radix = 10;
+			++start;
+			if (start < len && (str.charAt(start) == 'x' || str.charAt(start) == 'X')) {
+				radix = 16;
+				++start;
+			}
+			end = start;
+			codePoint = 0;
+			while (end < len && end - start < 8 && Character.digit(str.charAt(end), radix) >= 0) {
+				codePoint = codePoint * radix + Character.digit(str.charAt(end), radix);
+				++end;
+			}
+			if (end == start || !Character.isValidCodePoint(codePoint)
+					|| (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE))
+				codePoint = -1;
+		} else {
+			while (end < len && end - start < HTMLEntities.MAX_NAME_LENGTH
+					&& Character.isLetterOrDigit(str.charAt(end))) {
+				++end;
+			}
+			codePoint = HTMLEntities.lookup(str, start, end);
+		}
+		if (codePoint < 0 || end >= len || str.charAt(end) != ';')
+			return -1;
+		entityEnd = end;
+		return codePoint;
+	}
+
+	/**
+	 * Decodes the entity at <code>pos</code>. Unknown entities are treated as
+	 * text.
+	 */
+	private void entity() {
+		int codePoint = decodeEntity(pos);
+		if (codePoint < 0) {
+			ret.append("\\&");
+			return;
+		}
+		pos = entityEnd;
+		if (codePoint == ' ' && verbat > 0)
+			ret.append("\\phantom{ }");
+		else
+			TexEscapes.append(ret, codePoint);
+	}
+
+	/**
+	 * Writes the contents of the <code>&lt;pre&gt;</code> block ending at
+	 * <code>pos</code> into a code file (without tags and with entities
+	 * decoded) and references it from the output. Returns false if the block
+	 * is not closed in the current input or the file could not be written.
+	 */
+	private boolean externalizeCode() {
+		int start = pos + 1;
+		int end = indexOfIgnoreCase(str, "</pre>", start);
+		if (end < 0)
+			return false;
+		/* like html, ignore a line break right after <pre> */
+		if (str.startsWith("\r\n", start))
+			start += 2;
+		else if (start < end && str.charAt(start) == '\n')
+			++start;
+
+		StringBuilder code = new StringBuilder(end - start);
+		for (int i = start; i < end; ++i) {
+			char c = str.charAt(i);
+			if (c == '<') {
+				int close = str.indexOf('>', i);
+				if (close >= 0 && close < end) {
+					i = close;
+					continue;
+				}
+			} else if (c == '&') {
+				int codePoint = decodeEntity(i);
+				if (codePoint >= 0) {
+					code.appendCodePoint(codePoint);
+					i = entityEnd;
+					continue;
+				}
+			} else if (c == '\r') {
+				if (i + 1 < end && str.charAt(i + 1) == '\n')
+					continue;
+				c = '\n';
+			}
+			code.append(c);
+		}
+		/* drop the indentation of the closing tag */
+		int last = code.length();
+		while (last > 0 && (code.charAt(last - 1) == ' ' || code.charAt(last - 1) == '\t'))
+			--last;
+		if (last == 0 || code.charAt(last - 1) == '\n')
+			code.setLength(last);
+		if (code.length() > 0 && code.charAt(code.length() - 1) != '\n')
+			code.append('\n');
+
+		try {
+			String filename = context.writeCode(code.toString());
+			ret.append("\\texdocverbatiminput{" + filename + "}\n");
+		} catch (IOException e) {
+			System.err.println("Warning: Couldn't write code sample: " + e.getMessage());
+			return false;
+		}
+		pos = end + "</pre>".length() - 1;
+		return true;
 	}
 
 	/**
@@ -524,27 +1012,36 @@ public class HTMLToTex {
 	 */
 	protected static int getTagAttrs(String str, Properties p, int i) {
 		// static Properties getTagAttrs( String str, int i ) {
-		String name = "";
-		String value = "";
+		StringBuilder name = new StringBuilder();
+		StringBuilder value = new StringBuilder();
 		int state = 0;
 		while (i < str.length()) {
 			switch (str.charAt(i)) {
 			case ' ':
-				if (state == 2) {
-					p.put(name.toLowerCase(), value);
+				if (state == 1 && name.length() > 0) {
+					/* attribute without value unless a '=' follows */
+					int next = i;
+					while (next < str.length() && str.charAt(next) == ' ')
+						++next;
+					if (next < str.length() && str.charAt(next) != '=' && str.charAt(next) != '>') {
+						p.put(name.toString().toLowerCase(), "");
+						name.setLength(0);
+					}
+				} else if (state == 2) {
+					p.put(name.toString().toLowerCase(), value.toString());
 					state = 1;
-					name = "";
-					value = "";
+					name.setLength(0);
+					value.setLength(0);
 				} else if (state == 3) {
-					value += " ";
+					value.append(' ');
 				}
 				break;
 			case '=':
 				if (state == 1) {
 					state = 2;
-					value = "";
+					value.setLength(0);
 				} else if (state > 1) {
-					value += '=';
+					value.append('=');
 				}
 				break;
 			case '"':
@@ -552,25 +1049,25 @@ public class HTMLToTex {
 					state = 3;
 				} else if (state == 3) {
 					state = 1;
-					p.put(name.toLowerCase(), value);
-					name = "";
-					value = "";
+					p.put(name.toString().toLowerCase(), value.toString());
+					name.setLength(0);
+					value.setLength(0);
 				}
 				break;
 			case '>':
 				if (state == 1) {
-					p.put(name.toLowerCase(), "");
+					p.put(name.toString().toLowerCase(), "");
 				} else if (state == 2) {
-					p.put(name.toLowerCase(), value);
+					p.put(name.toString().toLowerCase(), value.toString());
 				}
 				return i;
 			default:
 				if (state == 0)
 					state = 1;
 				if (state == 1) {
-					name = name + str.charAt(i);
+					name.append(str.charAt(i));
 				} else {
-					value = value + str.charAt(i);
+					value.append(str.charAt(i));
 				}
 			}
 			++i;
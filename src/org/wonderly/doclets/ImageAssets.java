@@ -0,0 +1,277 @@
+package org.wonderly.doclets;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Converts the images referenced by <code>&lt;img&gt;</code> tags into PNG
+ * files in the image directory. The conversion runs on a pool of worker
+ * threads, the text conversion only needs the name of the resulting file,
+ * which is derived from the path of the source image.
+ *
+ * A cache file in the image directory records the content hash of the source
+ * of every converted image, so an image is only decoded again when it
+ * changed.
+ *
+ * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
+ */
+class ImageAssets {
+	/** images with a larger width or height are scaled down */
+	static final int MAX_SIZE = 2048;
+	private static final String CACHE_FILE = "images.cache";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File directory;
+	private final String prefix;
+	private final ExecutorService workers;
+	/** names of the images submitted so far */
+	private final Set<String> names = new HashSet<String>();
+	private final List<Future<?>> pending = new ArrayList<Future<?>>();
+	/** content hash of the source of each image in the directory */
+	private final Map<String, String> cache = new HashMap<String, String>();
+	private boolean cacheChanged = false;
+
+	ImageAssets(String directory) {
+		this.directory = new File(directory);
+		this.prefix = directory.endsWith("/") ? directory : directory + "/";
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+		workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "texdoclet-images");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		readCache();
+	}
+
+	/**
+	 * Queues the conversion of an image and returns the name of the resulting
+	 * file (relative to the latex document).
+	 */
+	synchronized String add(File source) throws IOException {
+		source = source.getCanonicalFile();
+		String name = fileName(source);
+		if (names.add(name)) {
+			final File src = source;
+			final File target = new File(directory, name);
+			pending.add(workers.submit(new Runnable() {
+				public void run() {
+					try {
+						convert(src, target);
+					} catch (Exception e) {
+						System.err.println("Warning: Couldn't convert image '" + src + "': " + e);
+					}
+				}
+			}));
+		}
+		return prefix + name;
+	}
+
+	/**
+	 * Waits until all queued images are converted and updates the cache file.
+	 */
+	void waitForAll() {
+		for (;;) {
+			Future<?> next;
+			synchronized (this) {
+				if (pending.isEmpty())
+					break;
+				next = pending.remove(pending.size() - 1);
+			}
+			try {
+				next.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				/* reported by the task */
+			}
+		}
+		writeCache();
+	}
+
+	/**
+	 * Returns a name for the converted image: the name of the source file
+	 * (restricted to characters which are safe in latex file names) and a
+	 * hash of its path, so images with the same name in different packages
+	 * don't collide.
+	 */
+	private static String fileName(File source) {
+		String base = source.getName();
+		int dot = base.lastIndexOf('.');
+		if (dot > 0)
+			base = base.substring(0, dot);
+		StringBuilder name = new StringBuilder(base.length() + 22);
+		for (int i = 0; i < base.length() && name.length() < 32; ++i) {
+			char c = base.charAt(i);
+			name.append((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ? c : '-');
+		}
+		name.append('-');
+		name.append(hash(source.getPath().getBytes(UTF8), 8));
+		name.append(".png");
+		return name.toString();
+	}
+
+	/** Returns the first <code>bytes</code> bytes of the SHA-1 of data in hex */
+	private static String hash(byte[] data, int bytes) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		StringBuilder res = new StringBuilder(2 * bytes);
+		for (int i = 0; i < bytes; ++i) {
+			res.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+			res.append(Character.forDigit(digest[i] & 0xf, 16));
+		}
+		return res.toString();
+	}
+
+	/**
+	 * Converts an image into a PNG file of at most {@link #MAX_SIZE} pixels
+	 * width and height. Runs on a worker thread.
+	 */
+	private void convert(File source, File target) throws IOException {
+		byte[] data = Files.readAllBytes(source.toPath());
+		String contentHash = hash(data, 20);
+		synchronized (cache) {
+			if (contentHash.equals(cache.get(target.getName())) && target.isFile())
+				return;
+		}
+
+		ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(data));
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+		if (!readers.hasNext())
+			throw new IOException("unknown image format");
+		ImageReader reader = readers.next();
+		byte[] png;
+		try {
+			reader.setInput(in);
+			boolean fits = reader.getWidth(0) <= MAX_SIZE && reader.getHeight(0) <= MAX_SIZE;
+			if (fits && reader.getFormatName().equalsIgnoreCase("png")) {
+				/* nothing to normalize, keep the file as it is */
+				png = data;
+			} else {
+				BufferedImage image = reader.read(0);
+				if (!fits)
+					image = scale(image);
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				if (!ImageIO.write(image, "png", out))
+					throw new IOException("no PNG writer for this image");
+				png = out.toByteArray();
+			}
+		} finally {
+			reader.dispose();
+			in.close();
+		}
+
+		if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory())
+			throw new IOException("Couldn't create directory '" + directory + "'");
+		/* other runs may write the same file */
+		File tmp = File.createTempFile("image", ".tmp", directory);
+		Files.write(tmp.toPath(), png);
+		Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		synchronized (cache) {
+			cache.put(target.getName(), contentHash);
+			cacheChanged = true;
+		}
+	}
+
+	/** Scales an image down so it fits into {@link #MAX_SIZE} pixels */
+	private static BufferedImage scale(BufferedImage image) {
+		double factor = Math.min((double) MAX_SIZE / image.getWidth(), (double) MAX_SIZE / image.getHeight());
+		int width = Math.max(1, (int) (image.getWidth() * factor));
+		int height = Math.max(1, (int) (image.getHeight() * factor));
+		BufferedImage res = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = res.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(image, 0, 0, width, height, null);
+		g.dispose();
+		return res;
+	}
+
+	/**
+	 * Reads the cache file. Each line holds the name of a converted image and
+	 * the content hash of its source.
+	 */
+	private void readCache() {
+		File file = new File(directory, CACHE_FILE);
+		if (!file.isFile())
+			return;
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					int blank = line.indexOf(' ');
+					if (blank > 0)
+						cache.put(line.substring(0, blank), line.substring(blank + 1));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Warning: Couldn't read image cache '" + file + "': " + e.getMessage());
+		}
+	}
+
+	private void writeCache() {
+		Map<String, String> entries;
+		synchronized (cache) {
+			if (!cacheChanged)
+				return;
+			entries = new TreeMap<String, String>(cache);
+			cacheChanged = false;
+		}
+		try {
+			File tmp = File.createTempFile("images", ".tmp", directory);
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(Files.newOutputStream(tmp.toPath()), UTF8));
+			try {
+				for (Map.Entry<String, String> entry : entries.entrySet()) {
+					out.println(entry.getKey() + " " + entry.getValue());
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), new File(directory, CACHE_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Warning: Couldn't write image cache: " + e.getMessage());
+		}
+	}
+}
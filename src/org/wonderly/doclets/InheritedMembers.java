@@ -0,0 +1,133 @@
+package org.wonderly.doclets;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.sun.javadoc.ClassDoc;
+import com.sun.javadoc.FieldDoc;
+import com.sun.javadoc.MemberDoc;
+import com.sun.javadoc.MethodDoc;
+import com.sun.javadoc.Parameter;
+
+/**
+ * The effective fields and methods of classes: the declared ones plus the
+ * ones inherited from supertypes which are neither overridden nor hidden.
+ * The table of a class is built from the tables of its direct supertypes and
+ * kept, so every class of a hierarchy is visited once no matter how many
+ * subclasses share it.
+ *
+ * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
+ */
+class InheritedMembers {
+	/**
+	 * The effective members of one class in declaration order: own members
+	 * first, then the ones of the superclass, then the ones of the
+	 * interfaces.
+	 */
+	private static class Table {
+		/** methods keyed by name and parameter types */
+		final Map<String, MethodDoc> methods = new LinkedHashMap<String, MethodDoc>();
+		/** names of all methods, to find overrides with different erasure */
+		final Set<String> methodNames = new HashSet<String>();
+		/** fields keyed by name */
+		final Map<String, FieldDoc> fields = new LinkedHashMap<String, FieldDoc>();
+	}
+
+	private final Map<String, Table> tables = new HashMap<String, Table>();
+
+	/** Returns the effective methods of a class */
+	Collection<MethodDoc> methods(ClassDoc cd) {
+		return table(cd).methods.values();
+	}
+
+	/** Returns the effective fields of a class */
+	Collection<FieldDoc> fields(ClassDoc cd) {
+		return table(cd).fields.values();
+	}
+
+	private Table table(ClassDoc cd) {
+		Table table = tables.get(cd.qualifiedName());
+		if (table != null)
+			return table;
+
+		table = new Table();
+		for (MethodDoc method : cd.methods()) {
+			table.methods.put(methodKey(method), method);
+			table.methodNames.add(method.name());
+		}
+		for (FieldDoc field : cd.fields()) {
+			table.fields.put(field.name(), field);
+		}
+		/* the superclass first, its methods win over interface methods */
+		ClassDoc superclass = cd.superclass();
+		if (superclass != null)
+			inherit(table, cd, table(superclass));
+		for (ClassDoc iface : cd.interfaces()) {
+			inherit(table, cd, table(iface));
+		}
+		tables.put(cd.qualifiedName(), table);
+		return table;
+	}
+
+	/**
+	 * Adds the members of a supertype table which are visible in
+	 * <code>cd</code> and not overridden or hidden by members already in
+	 * <code>table</code>.
+	 */
+	private static void inherit(Table table, ClassDoc cd, Table supertype) {
+		for (Map.Entry<String, MethodDoc> entry : supertype.methods.entrySet()) {
+			MethodDoc method = entry.getValue();
+			if (!isInherited(method, cd) || table.methods.containsKey(entry.getKey()))
+				continue;
+			/* static interface methods are not inherited */
+			if (method.isStatic() && method.containingClass().isInterface())
+				continue;
+			if (table.methodNames.contains(method.name()) && isOverridden(table, method))
+				continue;
+			table.methods.put(entry.getKey(), method);
+			table.methodNames.add(method.name());
+		}
+		for (Map.Entry<String, FieldDoc> entry : supertype.fields.entrySet()) {
+			if (isInherited(entry.getValue(), cd) && !table.fields.containsKey(entry.getKey()))
+				table.fields.put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Checks whether a method with the same name overrides
+	 * <code>method</code> although the erased signatures differ (like
+	 * <code>compareTo(Foo)</code> and <code>Comparable.compareTo(T)</code>).
+	 */
+	private static boolean isOverridden(Table table, MethodDoc method) {
+		for (MethodDoc candidate : table.methods.values()) {
+			if (candidate.name().equals(method.name()) && candidate.overrides(method))
+				return true;
+		}
+		return false;
+	}
+
+	/** Checks whether a supertype member is visible in <code>cd</code> */
+	private static boolean isInherited(MemberDoc member, ClassDoc cd) {
+		if (member.isPrivate())
+			return false;
+		if (member.isPackagePrivate())
+			return member.containingPackage().name().equals(cd.containingPackage().name());
+		return true;
+	}
+
+	private static String methodKey(MethodDoc method) {
+		StringBuilder res = new StringBuilder(method.name());
+		res.append('(');
+		for (Parameter param : method.parameters()) {
+			res.append(param.type().qualifiedTypeName());
+			res.append(param.type().dimension());
+			res.append(',');
+		}
+		res.append(')');
+		return res.toString();
+	}
+}
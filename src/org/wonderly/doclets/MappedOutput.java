@@ -0,0 +1,86 @@
+package org.wonderly.doclets;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Assembles an output file from fragments rendered in parallel. The offset
+ * of every fragment is the sum of the sizes of the fragments before it, so
+ * the file can be sized and memory mapped up front and the fragments are
+ * copied into their places by several threads at once, without a thread
+ * writing the whole document.
+ *
+ * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
+ */
+class MappedOutput {
+	private MappedOutput() {
+	}
+
+	/**
+	 * Writes the fragments one after the other into <code>filename</code>.
+	 * The fragments are split into <code>threads</code> runs of about the
+	 * same size, each copied by one of the workers.
+	 *
+	 * @throws IOException
+	 *             if the file can't be written or is too large to be mapped
+	 */
+	static void write(String filename, List<byte[]> fragments, ExecutorService workers, int threads)
+			throws IOException {
+		int count = fragments.size();
+		long[] offsets = new long[count + 1];
+		for (int i = 0; i < count; ++i) {
+			offsets[i + 1] = offsets[i] + fragments.get(i).length;
+		}
+		long size = offsets[count];
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Output '" + filename + "' has " + size
+					+ " bytes, too many to be mapped, write it without -threads");
+
+		RandomAccessFile file = new RandomAccessFile(filename, "rw");
+		try {
+			file.setLength(size);
+			MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			List<Future<?>> results = new ArrayList<Future<?>>(threads);
+			int first = 0;
+			for (int t = 1; t <= threads && first < count; ++t) {
+				/* the run ends with the first fragment starting in the next run */
+				int last = first;
+				long end = size * t / threads;
+				while (last < count && (offsets[last] < end || t == threads)) {
+					++last;
+				}
+				if (last == first)
+					continue;
+				final ByteBuffer target = map.duplicate();
+				target.position((int) offsets[first]);
+				final List<byte[]> run = fragments.subList(first, last);
+				results.add(workers.submit(new Runnable() {
+					public void run() {
+						for (byte[] fragment : run) {
+							target.put(fragment);
+						}
+					}
+				}));
+				first = last;
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Writing '" + filename + "' was interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Couldn't write '" + filename + "'", e.getCause());
+		} finally {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package org.wonderly.doclets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.javadoc.SourcePosition;
+
+/**
+ * The source files of a run, for listings of classes and members. Every file
+ * is memory mapped once and its line start offsets are computed once, so
+ * slicing out many members of the same file never reads it again. The
+ * declaration at a position is found by matching braces on the bytes, which
+ * works for all encodings that keep ASCII characters single bytes (like UTF-8
+ * and the ISO-8859 family).
+ *
+ * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
+ */
+class SourceFiles {
+	private static final String PROBE = "\n{}/*\"'\\";
+
+	/** A mapped source file */
+	private static class Source {
+		final ByteBuffer bytes;
+		/** offset of the first byte of every line, line 1 first */
+		final int[] lines;
+
+		Source(ByteBuffer bytes, int[] lines) {
+			this.bytes = bytes;
+			this.lines = lines;
+		}
+	}
+
+	private final Charset charset;
+	/** mapped files by path, null for files which could not be read */
+	private final Map<String, Source> sources = new HashMap<String, Source>();
+
+	/**
+	 * Creates the source files of a run.
+	 *
+	 * @param encoding
+	 *            encoding of the source files, null for the default encoding
+	 */
+	SourceFiles(String encoding) {
+		charset = encoding != null ? Charset.forName(encoding) : Charset.defaultCharset();
+	}
+
+	/**
+	 * Returns the source of the class or member declared at a position: the
+	 * lines from the one of the position up to the brace closing its body,
+	 * with the indentation of the first line removed. Returns null if the
+	 * declaration has no body (like abstract methods) or the file can't be
+	 * read.
+	 */
+	String listing(SourcePosition position) {
+		if (position == null || position.file() == null || position.line() <= 0)
+			return null;
+		Source source = source(position.file());
+		if (source == null || position.line() > source.lines.length)
+			return null;
+		int start = source.lines[position.line() - 1];
+		int end = bodyEnd(source.bytes, start);
+		if (end < 0)
+			return null;
+		ByteBuffer slice = source.bytes.duplicate();
+		slice.position(start);
+		slice.limit(end);
+		return unindent(charset.decode(slice).toString());
+	}
+
+	private Source source(File file) {
+		String path = file.getPath();
+		if (sources.containsKey(path))
+			return sources.get(path);
+		Source source = null;
+		if (!Arrays.equals(PROBE.getBytes(charset), PROBE.getBytes(Charset.forName("US-ASCII")))) {
+			System.err.println("Warning: Listings need an ASCII compatible source encoding, not " + charset.name());
+		} else {
+			try {
+				source = map(file);
+			} catch (IOException e) {
+				System.err.println("Warning: Couldn't read '" + path + "' for listings: " + e.getMessage());
+			}
+		}
+		sources.put(path, source);
+		return source;
+	}
+
+	private static Source map(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			/* the mapping stays valid after the file is closed */
+			ByteBuffer bytes = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+			int[] lines = new int[256];
+			int count = 0;
+			lines[count++] = 0;
+			for (int i = 0, size = bytes.limit(); i < size; ++i) {
+				if (bytes.get(i) != '\n')
+					continue;
+				if (count == lines.length)
+					lines = Arrays.copyOf(lines, 2 * count);
+				lines[count++] = i + 1;
+			}
+			return new Source(bytes, Arrays.copyOf(lines, count));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the offset after the line of the brace closing the first body
+	 * after <code>start</code>, skipping comments and literals. Returns -1 if
+	 * a <code>;</code> ends the declaration before a body starts or the body
+	 * is not closed.
+	 */
+	private static int bodyEnd(ByteBuffer bytes, int start) {
+		int size = bytes.limit();
+		int depth = 0;
+		/* braces in parentheses before the body belong to annotations */
+		int parens = 0;
+		for (int i = start; i < size; ++i) {
+			byte b = bytes.get(i);
+			if (b == '/' && i + 1 < size && bytes.get(i + 1) == '/') {
+				while (i + 1 < size && bytes.get(i + 1) != '\n')
+					++i;
+			} else if (b == '/' && i + 1 < size && bytes.get(i + 1) == '*') {
+				i += 2;
+				while (i + 1 < size && !(bytes.get(i) == '*' && bytes.get(i + 1) == '/'))
+					++i;
+				++i;
+			} else if (b == '"' || b == '\'') {
+				for (++i; i < size && bytes.get(i) != b && bytes.get(i) != '\n'; ++i) {
+					if (bytes.get(i) == '\\')
+						++i;
+				}
+			} else if (depth == 0 && (b == '(' || b == ')')) {
+				parens += b == '(' ? 1 : -1;
+			} else if (depth == 0 && parens > 0) {
+				continue;
+			} else if (b == ';' && depth == 0) {
+				return -1;
+			} else if (b == '{') {
+				++depth;
+			} else if (b == '}' && depth > 0 && --depth == 0) {
+				while (i < size && bytes.get(i) != '\n')
+					++i;
+				return Math.min(i + 1, size);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Normalizes the line breaks of a listing and removes the indentation of
+	 * its first line from all lines.
+	 */
+	private static String unindent(String text) {
+		text = text.replace("\r\n", "\n").replace('\r', '\n');
+		if (!text.endsWith("\n"))
+			text += "\n";
+		String[] lines = text.split("\n", -1);
+		String first = lines[0];
+		int indentation = 0;
+		while (indentation < first.length() && Character.isWhitespace(first.charAt(indentation)))
+			++indentation;
+		String indent = first.substring(0, indentation);
+		StringBuilder res = new StringBuilder(text.length());
+		/* the last element is empty, the text ends with a line break */
+		for (int i = 0; i < lines.length - 1; ++i) {
+			String line = lines[i];
+			if (line.startsWith(indent))
+				res.append(line, indentation, line.length());
+			else if (line.trim().length() > 0)
+				res.append(line);
+			res.append('\n');
+		}
+		return res.toString();
+	}
+}
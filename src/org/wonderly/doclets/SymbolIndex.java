@@ -0,0 +1,91 @@
+package org.wonderly.doclets;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Back-of-book index of all packages, classes and members, collected while
+ * rendering. The index is written sorted and grouped by initial letter as
+ * <code>texdocindex</code> environment, so no makeindex run (and no
+ * additional latex pass) is needed.
+ *
+ * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
+ */
+public class SymbolIndex {
+	private static class Entry {
+		/** name used for sorting */
+		final String key;
+		/** latex text of the entry */
+		final String text;
+		/** latex description like "method in Foo" */
+		final String description;
+		final String label;
+
+		Entry(String key, String text, String description, String label) {
+			this.key = key;
+			this.text = text;
+			this.description = description;
+			this.label = label;
+		}
+	}
+
+	private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+		public int compare(Entry o1, Entry o2) {
+			int res = o1.key.compareToIgnoreCase(o2.key);
+			if (res != 0)
+				return res;
+			res = o1.key.compareTo(o2.key);
+			if (res != 0)
+				return res;
+			return o1.description.compareTo(o2.description);
+		}
+	};
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	/**
+	 * Adds an entry to the index.
+	 *
+	 * @param key
+	 *            the (unconverted) name the entry is sorted by
+	 * @param text
+	 *            the latex text of the entry
+	 * @param description
+	 *            latex text describing kind and location of the entry
+	 * @param label
+	 *            the label the entry refers to
+	 */
+	public void add(String key, String text, String description, String label) {
+		entries.add(new Entry(key, text, description, label));
+	}
+
+	/**
+	 * Returns the group (initial letter) of an entry.
+	 */
+	private static char group(Entry e) {
+		char c = Character.toUpperCase(e.key.charAt(0));
+		return Character.isLetter(c) ? c : '_';
+	}
+
+	/**
+	 * Sorts the entries and writes the index.
+	 */
+	public void write(PrintWriter os) {
+		Collections.sort(entries, ORDER);
+
+		os.println("\\begin{texdocindex}");
+		char current = 0;
+		for (Entry e : entries) {
+			char group = group(e);
+			if (group != current) {
+				current = group;
+				os.println("\\texdocindexgroup{" + (group == '_' ? "\\_" : String.valueOf(group)) + "}");
+			}
+			os.println("\\texdocindexentry{" + e.text + "}{" + e.description + "}{" + e.label + "}");
+		}
+		os.println("\\end{texdocindex}");
+	}
+}
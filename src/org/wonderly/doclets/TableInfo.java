@@ -1,7 +1,11 @@
 package org.wonderly.doclets;
 
 import java.util.Enumeration;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Stack;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  *  This class provides support for converting HTML tables into LaTeX tables.
@@ -11,6 +15,10 @@ import java.util.Properties;
  *  <li>rowspan attributes are not processed, but colspan= is.
  *  <li>the argument to border= in the table tag is not used to control line size
  *  </ul>
+ *  Long tables are split into several tabulars (every 30 rows or
+ *  <code>texrows=</code> rows) so they can break across pages. The leading
+ *  rows which only consist of <code>&lt;th&gt;</code> cells are repeated at
+ *  the start of every tabular.
  *  <br>
  *  Here is an example table.
  *  <p>
@@ -50,11 +58,25 @@ public class TableInfo {
 	private int bordwid;
 	private boolean parboxed;
 	private boolean rowopen;
-	static int tblcnt;
 	int tblno;
 	String tc;
+	/** default number of rows in one tabular */
+	static final int ROWS_PER_TABULAR = 30;
+	/** rows per tabular, 0 if the table is not split */
+	private int maxRows = 0;
+	private int rowsInTabular = 0;
+	/** start of the tabular environment, repeated for every part */
+	private String begin = "";
+	/** output of the leading header rows */
+	private final StringBuilder header = new StringBuilder();
+	/** true while all rows so far are header rows */
+	private boolean inHeader = true;
+	/** current row contains <code>&lt;td&gt;</code> cells */
+	private boolean rowHasData;
+	/** offset of the current row in the output buffer, -1 if unknown */
+	private int rowStart = -1;
 
-	String hasProp(String prop, Properties p) {
+	static String hasProp(String prop, Properties p) {
 		if (p == null)
 			return null;
 		Enumeration<Object> e = p.keys();
@@ -68,7 +90,64 @@ public class TableInfo {
 		return null;
 	}
 
-	int hasNumProp(String prop, Properties p) {
+	/** number of tables with distinct names, see {@link #letters} */
+	static final int MAX_TABLES = 26 * 26 * 26;
+
+	/** table numbers in latex lengths and table comments */
+	private static final Pattern TABLE_NUMBER = Pattern.compile("(\\\\tbl)([a-z]{3})c|(\n% Table #)(\\d+)\n");
+
+	/**
+	 * Returns the three letters naming a table or column in the names of the
+	 * latex lengths.
+	 */
+	static String letters(int n) {
+		return "" + (char) ('a' + n / (26 * 26) % 26) + (char) ('a' + n / 26 % 26) + (char) ('a' + n % 26);
+	}
+
+	/**
+	 * Adds <code>offset</code> to the numbers of all tables in converted
+	 * latex text, for texts that are combined with tables converted by
+	 * another run. The lowest number found and the highest plus one are
+	 * recorded in <code>range</code> (before adding the offset).
+	 */
+	static String renumber(String latex, int offset, int[] range) {
+		if (latex.indexOf("\\tbl") < 0 && latex.indexOf("% Table #") < 0)
+			return latex;
+		Matcher m = TABLE_NUMBER.matcher(latex);
+		StringBuffer res = new StringBuffer(latex.length());
+		while (m.find()) {
+			String replacement;
+			if (m.group(1) != null) {
+				String name = m.group(2);
+				int n = 0;
+				for (int i = 0; i < name.length(); ++i) {
+					n = 26 * n + name.charAt(i) - 'a';
+				}
+				replacement = m.group(1) + letters(n + offset) + "c";
+			} else {
+				int n = Integer.parseInt(m.group(4));
+				range[0] = Math.min(range[0], n);
+				range[1] = Math.max(range[1], n + 1);
+				replacement = m.group(3) + (n + offset) + "\n";
+			}
+			m.appendReplacement(res, Matcher.quoteReplacement(replacement));
+		}
+		m.appendTail(res);
+		return res.toString();
+	}
+
+	/** limit of colspan in html */
+	private static final int MAX_COLUMNS = 1000;
+
+	/**
+	 * Returns the colspan of a cell, 1 if it has none.
+	 */
+	static int colspan(Properties p) {
+		int v = hasNumProp("colspan", p);
+		return v > 0 ? Math.min(v, MAX_COLUMNS) : 1;
+	}
+
+	static int hasNumProp(String prop, Properties p) {
 		String val = hasProp(prop, p);
 		if (val == null)
 			return -1;
@@ -80,23 +159,23 @@ public class TableInfo {
 	}
 
 	/**
-	 * Constructs a new table object and starts processing of the table by
-	 * scanning the <code>&lt;table&gt;</code> passed to count columns.
+	 * Constructs a new table object and starts processing of the table.
 	 * 
 	 * @param p
 	 *            properties found on the <code>&lt;table&gt;</code> tag
 	 * @param ret
 	 *            the result buffer that will contain the output
-	 * @param table
-	 *            the input string that has the entire table definition in it.
-	 * @param off
-	 *            the offset into <code>&lt;table&gt;</code> where scanning
-	 *            should start
+	 * @param col
+	 *            the number of columns as counted by
+	 *            <code>countColumns</code>
+	 * @param tblno
+	 *            the number of the table, unique in the whole document
+	 * @param nested
+	 *            true if the table is part of another table (and can't be split)
 	 */
-	public TableInfo(Properties p, StringBuffer ret, String table, int off) {
-		tblno = tblcnt++;
-		tc = "" + (char) ('a' + (tblno / (26 * 26)))
-				+ (char) ((tblno / 26) + 'a') + (char) ((tblno % 26) + 'a');
+	public TableInfo(Properties p, StringBuffer ret, int col, int tblno, boolean nested) {
+		this.tblno = tblno;
+		tc = letters(tblno);
 		if (p == null)
 			return;
 		String val = hasProp("border", p);
@@ -113,59 +192,111 @@ public class TableInfo {
 					border = false;
 			}
 		}
-		ret.append("\n% Table #" + tblno + "\n");
-		int col = 0;
-		int row = 0;
-		for (int i = off; i < table.length(); ++i) {
-			if (table.charAt(i) == '<') {
-				if (table.substring(i, i + 7).equalsIgnoreCase("</table")) {
-					break;
-				} else if (table.substring(i, i + 4).equalsIgnoreCase("</tr")) {
-					break;
-				} else if (table.substring(i, i + 3).equalsIgnoreCase("<tr")) {
-					if (row++ > 0)
-						break;
-				} else if (table.substring(i, i + 3).equalsIgnoreCase("<td")) {
-					Properties pp = new Properties();
-					int idx = HTMLToTex.getTagAttrs(table, pp, i + 3);
-					int v = hasNumProp("colspan", pp);
-					if (v > 0)
-						col += v;
-					else
-						col++;
-					i = idx - 1;
-				} else if (table.substring(i, i + 3).equalsIgnoreCase("<th")) {
-					Properties pp = new Properties();
-					int idx = HTMLToTex.getTagAttrs(table, pp, i + 3);
-					int v = hasNumProp("colspan", pp);
-					if (v > 0)
-						col += v;
-					else
-						col++;
-					i = idx - 1;
-				}
-			}
+		if (!nested) {
+			int rows = hasNumProp("texrows", p);
+			maxRows = rows > 0 ? rows : ROWS_PER_TABULAR;
 		}
+		ret.append("\n% Table #" + tblno + "\n");
 		if (col == 0)
 			col = 1;
 		for (int i = 0; i < col; ++i) {
-			String cc = "" + (char) ('a' + (i / (26 * 26)))
-					+ (char) ((i / 26) + 'a') + (char) ((i % 26) + 'a');
+			String cc = letters(i);
 			ret.append("\\newlength{\\tbl" + tc + "c" + cc + "w}\n");
 			ret.append("\\setlength{\\tbl" + tc + "c" + cc + "w}{"
 					+ (1.0 / col) + "\\hsize}\n");
 		}
-		ret.append("\\begin{tabular}{");
+		StringBuilder spec = new StringBuilder("\\begin{tabular}{");
 		if (border)
-			ret.append("|");
+			spec.append("|");
 		for (int i = 0; i < col; ++i) {
-			String cc = "" + (char) ('a' + (i / (26 * 26)))
-					+ (char) ((i / 26) + 'a') + (char) ((i % 26) + 'a');
-			ret.append("p{\\tbl" + tc + "c" + cc + "w}");
+			String cc = letters(i);
+			spec.append("p{\\tbl" + tc + "c" + cc + "w}");
 			if (border)
-				ret.append("|");
+				spec.append("|");
+		}
+		spec.append("}\n");
+		begin = spec.toString();
+		ret.append(begin);
+	}
+
+	/** state of a table while counting columns */
+	private static class Scan {
+		final int off;
+		int col = 0;
+		int row = 0;
+		/** first row is complete, looking for the end of the table */
+		boolean skipping = false;
+
+		Scan(int off) {
+			this.off = off;
+		}
+	}
+
+	/**
+	 * Counts the columns in the first row of a table by scanning the
+	 * <code>&lt;table&gt;</code> passed. Tables nested in the first row are
+	 * counted in the same pass and recorded in <code>columns</code> (by the
+	 * offset of their tag end), so no part of the input is scanned twice even
+	 * for deeply nested tables.
+	 * 
+	 * @param table
+	 *            the input string that has the entire table definition in it.
+	 * @param off
+	 *            the offset into <code>&lt;table&gt;</code> where scanning
+	 *            should start
+	 * @param columns
+	 *            column counts of tables already scanned
+	 */
+	static int countColumns(String table, int off, Map<Integer, Integer> columns) {
+		Integer known = columns.get(off);
+		if (known != null)
+			return known;
+
+		Stack<Scan> scans = new Stack<Scan>();
+		Scan scan = new Scan(off);
+		for (int i = off; i < table.length(); ++i) {
+			if (table.charAt(i) != '<')
+				continue;
+			boolean rowDone = false;
+			if (table.regionMatches(true, i, "</table", 0, 7)) {
+				if (!scan.skipping)
+					columns.put(scan.off, scan.col);
+				if (scans.isEmpty())
+					return scan.col;
+				scan = scans.pop();
+			} else if (table.regionMatches(true, i, "<table", 0, 6)) {
+				int idx = HTMLToTex.getTagAttrs(table, new Properties(), i + 6);
+				scans.push(scan);
+				scan = new Scan(idx);
+				i = idx - 1;
+			} else if (scan.skipping) {
+				continue;
+			} else if (table.regionMatches(true, i, "</tr", 0, 4)) {
+				rowDone = true;
+			} else if (table.regionMatches(true, i, "<tr", 0, 3)) {
+				rowDone = scan.row++ > 0;
+			} else if (table.regionMatches(true, i, "<td", 0, 3)
+					|| table.regionMatches(true, i, "<th", 0, 3)) {
+				Properties pp = new Properties();
+				int idx = HTMLToTex.getTagAttrs(table, pp, i + 3);
+				scan.col = Math.min(scan.col + colspan(pp), MAX_COLUMNS);
+				i = idx - 1;
+			}
+			if (rowDone) {
+				columns.put(scan.off, scan.col);
+				if (scans.isEmpty())
+					return scan.col;
+				scan.skipping = true;
+			}
+		}
+		/* unterminated tables */
+		for (;;) {
+			if (!scan.skipping)
+				columns.put(scan.off, scan.col);
+			if (scans.isEmpty())
+				return scan.col;
+			scan = scans.pop();
 		}
-		ret.append("}\n");
 	}
 
 	/**
@@ -177,8 +308,16 @@ public class TableInfo {
 	 *            the properties from the <code>&lt;td&gt;</code> tag
 	 */
 	public void startCol(StringBuffer ret, Properties p) {
+		startCell(ret, p);
+		rowHasData = true;
+	}
+
+	private void startCell(StringBuffer ret, Properties p) {
 		endCol(ret);
-		int span = hasNumProp("colspan", p);
+		/* cells without <tr> start a row like in html */
+		if (!rowopen)
+			startRow(ret, null);
+		int span = hasNumProp("colspan", p) > 0 ? colspan(p) : -1;
 		if (colcnt > 0) {
 			ret.append(" & ");
 		}
@@ -189,9 +328,7 @@ public class TableInfo {
 			ret.append("\\multicolumn{" + span + "}{");
 			if (border && colcnt == 0)
 				ret.append("|");
-			String cc = "" + (char) ('a' + (colcnt / (26 * 26)))
-					+ (char) ((colcnt / 26) + 'a')
-					+ (char) ((colcnt % 26) + 'a');
+			String cc = letters(colcnt);
 			if (align != null) {
 				String h = align.substring(0, 1);
 				if ("rR".indexOf(h) >= 0)
@@ -226,7 +363,7 @@ public class TableInfo {
 	 *            the properties from the <code>&lt;th&gt;</code> tag
 	 */
 	public void startHeadCol(StringBuffer ret, Properties p) {
-		startCol(ret, p);
+		startCell(ret, p);
 		ret.append("\\bf ");
 	}
 
@@ -256,10 +393,22 @@ public class TableInfo {
 	 */
 	public void startRow(StringBuffer ret, Properties p) {
 		endRow(ret);
+		if (maxRows > 0 && rowsInTabular >= maxRows && !inHeader) {
+			/* continue in a new tabular, so the table can break across pages */
+			ret.append("\\end{tabular}\\par\n");
+			ret.append(begin);
+			if (border)
+				ret.append(" \\hline ");
+			ret.append(header);
+			rowsInTabular = 0;
+		}
 		if (rowcnt == 0) {
 			if (border)
 				ret.append(" \\hline ");
 		}
+		rowStart = ret.length();
+		rowHasData = false;
+		++rowsInTabular;
 		colcnt = 0;
 		++rowcnt;
 		rowopen = true;
@@ -279,9 +428,31 @@ public class TableInfo {
 				ret.append(" \\hline");
 			rowopen = false;
 			ret.append("\n");
+			if (inHeader) {
+				if (!rowHasData && rowStart >= 0 && rowStart <= ret.length())
+					header.append(ret, rowStart, ret.length());
+				else
+					inHeader = false;
+			}
 		}
 	}
 
+	/**
+	 * Tells the table that a table is nested in the current row. The row
+	 * defines the lengths of the nested table, so it ends the header rows
+	 * repeated in every tabular.
+	 */
+	void nestedTable() {
+		inHeader = false;
+	}
+
+	/**
+	 * Tells the table that the output buffer was written out and cleared.
+	 */
+	void outputFlushed() {
+		rowStart = -1;
+	}
+
 	/**
 	 * Ends the table, closing the last row as needed
 	 * 
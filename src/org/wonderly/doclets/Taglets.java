@@ -0,0 +1,314 @@
+package org.wonderly.doclets;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+import com.sun.javadoc.ClassDoc;
+import com.sun.javadoc.Doc;
+import com.sun.javadoc.FieldDoc;
+import com.sun.javadoc.MemberDoc;
+import com.sun.javadoc.PackageDoc;
+import com.sun.javadoc.SeeTag;
+import com.sun.javadoc.Tag;
+
+/**
+ * The taglets of a doclet run, keyed by tag name (like <code>@since</code>),
+ * so finding the taglet of a tag is a single lookup. The built-in taglets
+ * are registered first, taglets found by {@link ServiceLoader} replace them.
+ *
+ * Also offers the conversions taglets need and the index of constant values
+ * used by <code>{&#64;value}</code>.
+ *
+ * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
+ */
+public class Taglets {
+	private final TexDoclet doclet;
+	private final Map<String, TexTaglet> inlineTaglets = new HashMap<String, TexTaglet>();
+	private final Map<String, TexTaglet> blockTaglets = new HashMap<String, TexTaglet>();
+	/** unknown tags already warned about */
+	private final Set<String> unknown = new HashSet<String>();
+	/**
+	 * Constant values (as java expressions) keyed by qualified class name
+	 * plus <code>#</code> plus field name. Null values mark fields known not
+	 * to be constants.
+	 */
+	private final Map<String, String> constants = new HashMap<String, String>();
+
+	/**
+	 * Creates the taglets of a run.
+	 *
+	 * @param authors
+	 *            whether <code>&#64;author</code> tags are printed
+	 * @param versions
+	 *            whether <code>&#64;version</code> tags are printed
+	 */
+	Taglets(TexDoclet doclet, boolean authors, boolean versions) {
+		this.doclet = doclet;
+		register(new CodeTaglet("code"));
+		register(new CodeTaglet("literal"));
+		register(new ValueTaglet());
+		register(new DropTaglet("docRoot", true));
+		register(new BlockTaglet("deprecated", "\\par "));
+		register(new BlockTaglet("since", ", "));
+		register(authors ? new BlockTaglet("author", ", ") : new DropTaglet("author", false));
+		register(versions ? new BlockTaglet("version", ", ") : new DropTaglet("version", false));
+		register(new DropTaglet("serial", false));
+		register(new DropTaglet("serialData", false));
+		register(new DropTaglet("serialField", false));
+		/* marks classes and members for listings, see TexDoclet */
+		register(new DropTaglet("listing", false));
+
+		try {
+			for (TexTaglet taglet : ServiceLoader.load(TexTaglet.class, TexDoclet.class.getClassLoader())) {
+				register(taglet);
+			}
+		} catch (ServiceConfigurationError e) {
+			System.err.println("Warning: Couldn't load taglets: " + e.getMessage());
+		}
+	}
+
+	private void register(TexTaglet taglet) {
+		(taglet.isInlineTag() ? inlineTaglets : blockTaglets).put("@" + taglet.getName(), taglet);
+	}
+
+	/** Returns the taglet for an inline tag name (like <code>@code</code>) or null */
+	TexTaglet inlineTaglet(String name) {
+		return inlineTaglets.get(name);
+	}
+
+	/** Returns the taglet for a block tag name (like <code>@since</code>) or null */
+	TexTaglet blockTaglet(String name) {
+		return blockTaglets.get(name);
+	}
+
+	/**
+	 * Prints a warning about a tag without taglet, once per tag name.
+	 */
+	void warnUnknown(Tag tag, boolean inline) {
+		if (unknown.add(tag.name()))
+			System.err.println("Warning: Unknown " + (inline ? "inline" : "block") + " tag " + tag.name() + " ("
+					+ tag.position() + ")");
+	}
+
+	/**
+	 * Adds the constant fields to the index used by <code>{&#64;value}</code>.
+	 */
+	void indexConstants(FieldDoc[] fields) {
+		for (FieldDoc field : fields) {
+			constants.put(field.containingClass().qualifiedName() + "#" + field.name(),
+					field.constantValueExpression());
+		}
+	}
+
+	/**
+	 * Returns the text of a tag converted to latex. Inline tags in the text
+	 * are converted by their taglets, references become plain text.
+	 */
+	public String convert(Tag tag) {
+		StringBuilder res = new StringBuilder();
+		for (Tag t : tag.inlineTags()) {
+			TexTaglet taglet;
+			if (t.kind().equals("Text")) {
+				res.append(convertHTML(t.text(), t.holder()));
+			} else if (t instanceof SeeTag) {
+				String label = ((SeeTag) t).label();
+				if (label != null && label.length() > 0)
+					res.append(convertHTML(label, t.holder()));
+				else
+					res.append("\\texttt{" + escape(reference(t.text())) + "}");
+			} else if ((taglet = inlineTaglet(t.name())) != null) {
+				String tex = taglet.toTex(new Tag[] { t }, this);
+				if (tex != null)
+					res.append(tex);
+			} else {
+				warnUnknown(t, true);
+				res.append(convertHTML(t.text(), t.holder()));
+			}
+		}
+		return res.toString();
+	}
+
+	/**
+	 * Returns the text shown for a reference without label: the member name
+	 * for members of the same class, otherwise the reference with a dot
+	 * instead of <code>#</code>.
+	 */
+	private static String reference(String ref) {
+		ref = ref.trim();
+		int space = ref.indexOf(' ');
+		if (space > 0 && ref.lastIndexOf(')', space) >= ref.lastIndexOf('(', space))
+			ref = ref.substring(0, space);
+		return ref.startsWith("#") ? ref.substring(1) : ref.replace('#', '.');
+	}
+
+	/**
+	 * Converts html from the comment of <code>holder</code> to latex.
+	 */
+	public String convertHTML(String html, Doc holder) {
+		return doclet.convertHTML(html, holder);
+	}
+
+	/**
+	 * Escapes the latex special characters of plain text.
+	 */
+	public static String escape(String text) {
+		return TexEscapes.escape(text);
+	}
+
+	/**
+	 * Returns the value (as java expression) of the constant referenced by a
+	 * <code>{&#64;value}</code> tag or null if it is not a constant. Without
+	 * reference the tag refers to the field it documents.
+	 */
+	public String constantValue(Tag tag) {
+		Doc holder = tag.holder();
+		String ref = tag.text().trim();
+		ClassDoc cls;
+		String field;
+		if (ref.length() == 0) {
+			if (!(holder instanceof FieldDoc))
+				return null;
+			cls = ((FieldDoc) holder).containingClass();
+			field = holder.name();
+		} else {
+			int hash = ref.indexOf('#');
+			if (hash < 0)
+				return null;
+			field = ref.substring(hash + 1);
+			String className = ref.substring(0, hash);
+			if (holder instanceof ClassDoc)
+				cls = (ClassDoc) holder;
+			else if (holder instanceof MemberDoc)
+				cls = ((MemberDoc) holder).containingClass();
+			else
+				cls = null;
+			if (className.length() > 0) {
+				if (cls != null)
+					cls = cls.findClass(className);
+				else if (holder instanceof PackageDoc)
+					cls = ((PackageDoc) holder).findClass(className);
+			}
+		}
+		if (cls == null)
+			return null;
+
+		String key = cls.qualifiedName() + "#" + field;
+		if (constants.containsKey(key))
+			return constants.get(key);
+		/* class is not documented in this run */
+		String value = null;
+		for (FieldDoc f : cls.fields(false)) {
+			if (f.name().equals(field)) {
+				value = f.constantValueExpression();
+				break;
+			}
+		}
+		constants.put(key, value);
+		return value;
+	}
+
+	/** <code>{&#64;code}</code> and <code>{&#64;literal}</code>: text without html */
+	private static class CodeTaglet implements TexTaglet {
+		private final String name;
+
+		CodeTaglet(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isInlineTag() {
+			return true;
+		}
+
+		public String toTex(Tag[] tags, Taglets taglets) {
+			String text = escape(tags[0].text());
+			return name.equals("code") ? "\\texttt{" + text + "}" : text;
+		}
+	}
+
+	/** <code>{&#64;value}</code>: the value of a constant */
+	private static class ValueTaglet implements TexTaglet {
+		public String getName() {
+			return "value";
+		}
+
+		public boolean isInlineTag() {
+			return true;
+		}
+
+		public String toTex(Tag[] tags, Taglets taglets) {
+			String value = taglets.constantValue(tags[0]);
+			if (value == null) {
+				String ref = tags[0].text().trim();
+				System.err.println("Warning: {@value" + (ref.length() > 0 ? " " + ref : "")
+						+ "} does not refer to a constant (" + tags[0].position() + ")");
+				return escape(tags[0].text());
+			}
+			return escape(value);
+		}
+	}
+
+	/** Tags which produce no output */
+	private static class DropTaglet implements TexTaglet {
+		private final String name;
+		private final boolean inline;
+
+		DropTaglet(String name, boolean inline) {
+			this.name = name;
+			this.inline = inline;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isInlineTag() {
+			return inline;
+		}
+
+		public String toTex(Tag[] tags, Taglets taglets) {
+			return null;
+		}
+	}
+
+	/**
+	 * Block tags printed as a macro named after the tag, like
+	 * <code>\texdocsince{texts}</code>. The preamble defines the headings,
+	 * the texts of several tags are joined by a separator.
+	 */
+	private static class BlockTaglet implements TexTaglet {
+		private final String name;
+		private final String separator;
+
+		BlockTaglet(String name, String separator) {
+			this.name = name;
+			this.separator = separator;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isInlineTag() {
+			return false;
+		}
+
+		public String toTex(Tag[] tags, Taglets taglets) {
+			StringBuilder res = new StringBuilder("\\texdoc" + name + "{");
+			for (int i = 0; i < tags.length; ++i) {
+				if (i > 0)
+					res.append(separator);
+				res.append(taglets.convert(tags[i]));
+			}
+			res.append("}");
+			return res.toString();
+		}
+	}
+}
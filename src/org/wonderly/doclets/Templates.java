@@ -0,0 +1,263 @@
+package org.wonderly.doclets;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The templates of the latex macro layer: what is written for a class, a
+ * method, a reference and so on. The templates are read from a template file
+ * and compiled into literal segments and slots, rendering a template writes
+ * the segments and lets a {@link SlotWriter} fill each slot directly into the
+ * output.
+ *
+ * A template file consists of sections, each starting with a line
+ * <code>%% name</code>. The lines up to the next section form the template,
+ * the line break before the next section is not part of it (so a template
+ * ending with a line break is followed by an empty line). Slots are written
+ * as <code>${slot}</code>. Lines before the first section and lines starting
+ * with <code>%%%</code> are comments. The default templates are in
+ * <code>templates.tex</code> next to this class, a template file given with
+ * <code>-templates</code> replaces the templates it contains.
+ *
+ * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
+ */
+class Templates {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String DEFAULTS = "templates.tex";
+
+	/** The slots a template can contain */
+	enum Slot {
+		COMMENT, NAME, LABEL, KIND, TEXT, URL, SEE, HEADING, INTRO, SEES, CLASSES, SUBCLASSES, SUBINTERFACES,
+		IMPLEMENTORS, USES, FIELDS, CONSTRUCTORS, ENUMS, METHODS, INHERITED, TYPES, MEMBERS, MODIFIERS, TYPE,
+		PARAMETERS, PARAMDOCS, THROWS, FROM, FILE, LISTING
+	}
+
+	/** The templates with the slots they may contain */
+	enum Id {
+		OVERVIEW(Slot.COMMENT),
+		PACKAGE(Slot.NAME, Slot.LABEL, Slot.INTRO, Slot.SEES, Slot.CLASSES),
+		PACKAGEINTRO(Slot.COMMENT),
+		INPUT(Slot.FILE),
+		CLASS(Slot.KIND, Slot.NAME, Slot.LABEL, Slot.COMMENT, Slot.SUBCLASSES, Slot.SUBINTERFACES,
+				Slot.IMPLEMENTORS, Slot.USES, Slot.SEES, Slot.FIELDS, Slot.CONSTRUCTORS, Slot.ENUMS, Slot.METHODS,
+				Slot.INHERITED, Slot.LISTING),
+		SUBCLASSES(Slot.TYPES),
+		SUBINTERFACES(Slot.TYPES),
+		IMPLEMENTORS(Slot.TYPES),
+		KNOWNCLASS(Slot.TEXT, Slot.LABEL),
+		KNOWNCLASSPLAIN(Slot.TEXT),
+		SEPARATOR(),
+		USES(Slot.USES),
+		USE(Slot.KIND, Slot.TEXT, Slot.LABEL),
+		USEPLAIN(Slot.KIND, Slot.TEXT),
+		SEES(Slot.HEADING, Slot.SEES),
+		SEE(Slot.TEXT, Slot.LABEL),
+		EXTERNALSEE(Slot.TEXT, Slot.URL),
+		SEEPLAIN(Slot.TEXT),
+		FIELDS(Slot.MEMBERS),
+		FIELD(Slot.MODIFIERS, Slot.TYPE, Slot.NAME, Slot.LABEL, Slot.COMMENT, Slot.SEES),
+		CONSTRUCTORS(Slot.MEMBERS),
+		CONSTRUCTOR(Slot.MODIFIERS, Slot.NAME, Slot.PARAMETERS, Slot.LABEL, Slot.COMMENT, Slot.PARAMDOCS,
+				Slot.SEES, Slot.LISTING),
+		ENUMS(Slot.MEMBERS),
+		ENUM(Slot.NAME, Slot.LABEL, Slot.COMMENT, Slot.SEES),
+		METHODS(Slot.MEMBERS),
+		METHOD(Slot.MODIFIERS, Slot.TYPE, Slot.NAME, Slot.PARAMETERS, Slot.LABEL, Slot.COMMENT, Slot.PARAMDOCS,
+				Slot.SEES, Slot.LISTING),
+		LISTING(Slot.TEXT),
+		SUMMARYCLASS(Slot.KIND, Slot.NAME, Slot.LABEL, Slot.COMMENT, Slot.MEMBERS),
+		SUMMARYMEMBERS(Slot.MEMBERS),
+		SUMMARYMEMBER(Slot.MODIFIERS, Slot.TYPE, Slot.NAME, Slot.PARAMETERS, Slot.LABEL, Slot.COMMENT),
+		PARAMETERS(Slot.PARAMETERS),
+		PARAMETER(Slot.NAME, Slot.COMMENT),
+		RETURN(Slot.COMMENT),
+		THROWS(Slot.THROWS),
+		THROW(Slot.NAME, Slot.COMMENT),
+		INHERITEDFIELDS(Slot.FROM, Slot.MEMBERS),
+		INHERITEDMETHODS(Slot.FROM, Slot.MEMBERS),
+		INHERITEDMEMBER(Slot.TEXT, Slot.LABEL),
+		INHERITEDMEMBERPLAIN(Slot.TEXT),
+		REFERENCE(Slot.TEXT, Slot.SEE, Slot.LABEL),
+		EXTERNALLINK(Slot.TEXT, Slot.URL),
+		INHERITDOC(Slot.TEXT, Slot.COMMENT);
+
+		final Set<Slot> slots = EnumSet.noneOf(Slot.class);
+
+		Id(Slot... slots) {
+			for (Slot slot : slots) {
+				this.slots.add(slot);
+			}
+		}
+	}
+
+	/** Fills the slots of templates */
+	interface SlotWriter {
+		/**
+		 * Writes the content of a slot of <code>template</code> rendered for
+		 * <code>element</code>.
+		 */
+		void writeSlot(Id template, Slot slot, Object element);
+	}
+
+	/** A template compiled into literals with a slot between each two */
+	private static class Template {
+		final String[] literals;
+		final Slot[] slots;
+
+		Template(List<String> literals, List<Slot> slots) {
+			this.literals = literals.toArray(new String[literals.size()]);
+			this.slots = slots.toArray(new Slot[slots.size()]);
+		}
+	}
+
+	private static Templates defaults;
+
+	private final Map<Id, Template> templates = new EnumMap<Id, Template>(Id.class);
+
+	private Templates() {
+	}
+
+	/**
+	 * Returns the default templates. They are parsed once and shared, as
+	 * templates are never changed after parsing.
+	 */
+	static synchronized Templates defaults() {
+		if (defaults == null) {
+			InputStream in = Templates.class.getResourceAsStream(DEFAULTS);
+			if (in == null)
+				throw new RuntimeException("Default templates '" + DEFAULTS + "' not found");
+			try {
+				Templates res = new Templates();
+				res.parse(in, DEFAULTS);
+				for (Id id : Id.values()) {
+					if (!res.templates.containsKey(id))
+						throw new IOException(DEFAULTS + ": missing template " + name(id));
+				}
+				defaults = res;
+			} catch (IOException e) {
+				throw new RuntimeException("Couldn't read the default templates", e);
+			}
+		}
+		return defaults;
+	}
+
+	/**
+	 * Reads a template file. Templates not contained in it are taken from the
+	 * defaults.
+	 */
+	static Templates load(String filename) throws IOException {
+		Templates res = new Templates();
+		res.templates.putAll(defaults().templates);
+		res.parse(new FileInputStream(filename), filename);
+		return res;
+	}
+
+	/** Returns the name of a template in template files */
+	private static String name(Id id) {
+		return id.name().toLowerCase();
+	}
+
+	private void parse(InputStream stream, String filename) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(stream, UTF8));
+		try {
+			Id id = null;
+			int start = 0;
+			int lines = 0;
+			StringBuilder text = new StringBuilder();
+			String line;
+			int lineno = 0;
+			while ((line = in.readLine()) != null) {
+				++lineno;
+				if (line.startsWith("%%%"))
+					continue;
+				if (line.startsWith("%% ")) {
+					if (id != null)
+						templates.put(id, compile(id, text, filename, start));
+					String name = line.substring(3).trim();
+					id = null;
+					for (Id candidate : Id.values()) {
+						if (name(candidate).equals(name))
+							id = candidate;
+					}
+					if (id == null)
+						throw new IOException(filename + ":" + lineno + ": unknown template '" + name + "'");
+					start = lineno + 1;
+					lines = 0;
+					text.setLength(0);
+				} else if (id != null) {
+					if (lines++ > 0)
+						text.append('\n');
+					text.append(line);
+				}
+			}
+			if (id != null)
+				templates.put(id, compile(id, text, filename, start));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Splits the text of a template into literals and slots.
+	 *
+	 * @param start
+	 *            line number of the first line of the template (for errors)
+	 */
+	private static Template compile(Id id, CharSequence text, String filename, int start) throws IOException {
+		List<String> literals = new ArrayList<String>();
+		List<Slot> slots = new ArrayList<Slot>();
+		String s = text.toString();
+		int pos = 0;
+		for (;;) {
+			int open = s.indexOf("${", pos);
+			if (open < 0)
+				break;
+			int close = s.indexOf('}', open);
+			int lineno = start;
+			for (int i = s.indexOf('\n'); i >= 0 && i < open; i = s.indexOf('\n', i + 1)) {
+				++lineno;
+			}
+			if (close < 0)
+				throw new IOException(filename + ":" + lineno + ": unterminated slot in template " + name(id));
+			String name = s.substring(open + 2, close);
+			Slot slot = null;
+			for (Slot candidate : id.slots) {
+				if (candidate.name().toLowerCase().equals(name))
+					slot = candidate;
+			}
+			if (slot == null)
+				throw new IOException(filename + ":" + lineno + ": template " + name(id) + " has no slot '" + name
+						+ "'");
+			literals.add(s.substring(pos, open));
+			slots.add(slot);
+			pos = close + 1;
+		}
+		literals.add(s.substring(pos));
+		return new Template(literals, slots);
+	}
+
+	/**
+	 * Renders a template for an element into <code>os</code>.
+	 */
+	void write(Id id, PrintWriter os, SlotWriter writer, Object element) {
+		Template template = templates.get(id);
+		String[] literals = template.literals;
+		Slot[] slots = template.slots;
+		for (int i = 0; i < slots.length; ++i) {
+			os.write(literals[i]);
+			writer.writeSlot(id, slots[i], element);
+		}
+		os.write(literals[slots.length]);
+	}
+}
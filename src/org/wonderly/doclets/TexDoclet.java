@@ -1,12 +1,21 @@
 package org.wonderly.doclets;
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.nio.charset.Charset;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import com.sun.javadoc.ClassDoc;
 import com.sun.javadoc.ConstructorDoc;
@@ -16,16 +25,29 @@ import com.sun.javadoc.Doclet;
 import com.sun.javadoc.ExecutableMemberDoc;
 import com.sun.javadoc.FieldDoc;
 import com.sun.javadoc.LanguageVersion;
+import com.sun.javadoc.MemberDoc;
 import com.sun.javadoc.MethodDoc;
 import com.sun.javadoc.PackageDoc;
 import com.sun.javadoc.ParamTag;
 import com.sun.javadoc.Parameter;
 import com.sun.javadoc.ParameterizedType;
+import com.sun.javadoc.ProgramElementDoc;
 import com.sun.javadoc.RootDoc;
 import com.sun.javadoc.SeeTag;
+import com.sun.javadoc.SourcePosition;
 import com.sun.javadoc.Tag;
 import com.sun.javadoc.ThrowsTag;
 import com.sun.javadoc.Type;
+import com.sun.javadoc.TypeVariable;
+import com.sun.javadoc.WildcardType;
+
+import org.wonderly.doclets.DocModel.ClassInfo;
+import org.wonderly.doclets.DocModel.Comment;
+import org.wonderly.doclets.DocModel.Inherited;
+import org.wonderly.doclets.DocModel.MemberInfo;
+import org.wonderly.doclets.DocModel.NamedComment;
+import org.wonderly.doclets.DocModel.PackageInfo;
+import org.wonderly.doclets.DocModel.Reference;
 
 /**
  * Note: This version is heavily modified by Matthias Braun<matthias.braun@kit.edu>
@@ -42,11 +64,122 @@ import com.sun.javadoc.Type;
  * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
  */
 public class TexDoclet extends Doclet {
-	/** Writer for writing to output file */
-	private static PrintWriter os = null;
-	private static String outfile = "docs.tex";
-	private static String refInlineName = "see ";
-	private static String refBlockName = "See also";
+	/*
+	 * All state of a run lives in a TexDoclet instance created by start(), so
+	 * several runs can share a JVM.
+	 */
+	private String outfile = "docs.tex";
+	private String modelfile = null;
+	private boolean modelonly = false;
+	private boolean strictrefs = false;
+	private boolean lint = false;
+	/**
+	 * true if all outputs are summaries and no model is saved, only the first
+	 * sentences of the comments are converted then
+	 */
+	private final boolean summaryOnly;
+	/**
+	 * true if an output is a summary or a model is saved, the first sentences
+	 * are converted only then
+	 */
+	private final boolean needSummary;
+	/** index of the shard extracted by this run, -1 if not sharded */
+	private int shard = -1;
+	/** roots of the source files */
+	private String[] sourcepath = { "." };
+	/** encoding of the source files */
+	private String encoding = null;
+	/**
+	 * classes (by qualified name) and members (class name plus
+	 * <code>#</code> plus member name) whose source is listed, besides the
+	 * ones with a <code>&#64;listing</code> tag
+	 */
+	private Pattern listings = null;
+	private final SourceFiles sourceFiles;
+	private final ConversionContext context = new ConversionContext();
+	/**
+	 * Labels of all documented members, keyed by class name plus erased
+	 * signature (see {@link #memberKey}).
+	 */
+	private final Map<String, String> memberLabels = new HashMap<String, String>();
+	private final ExternalLinks externalLinks = new ExternalLinks();
+	private final Taglets taglets;
+	/**
+	 * Members using the documented types in their signature, by the int id
+	 * of the type.
+	 */
+	private final TypeUses typeUses = new TypeUses();
+	/** extracted classes by their id in {@link #typeUses} */
+	private final Map<Integer, ClassInfo> classInfos = new HashMap<Integer, ClassInfo>();
+	private final InheritedMembers inheritedMembers = new InheritedMembers();
+
+	private final String[][] options;
+
+	private TexDoclet(String[][] options) {
+		this.options = options;
+		boolean authors = false;
+		boolean versions = false;
+		for (int i = 0; i < options.length; ++i) {
+			if (options[i][0].equals("-output")) {
+				outfile = options[i][1];
+			} else if (options[i][0].equals("-model")) {
+				modelfile = options[i][1];
+			} else if (options[i][0].equals("-modelonly")) {
+				modelonly = true;
+			} else if (options[i][0].equals("-strictrefs")) {
+				strictrefs = true;
+			} else if (options[i][0].equals("-lint")) {
+				lint = true;
+			} else if (options[i][0].equals("-shard")) {
+				shard = Integer.parseInt(options[i][1]);
+			} else if (options[i][0].equals("-listings")) {
+				listings = Pattern.compile(options[i][1]);
+			} else if (options[i][0].equals("-author")) {
+				authors = true;
+			} else if (options[i][0].equals("-version")) {
+				versions = true;
+			} else if (options[i][0].equals("-encoding")) {
+				encoding = options[i][1];
+			} else if (options[i][0].equals("-codedir")) {
+				context.setCodeDirectory(options[i][1]);
+			} else if (options[i][0].equals("-imagedir")) {
+				context.setImageDirectory(options[i][1]);
+			} else if (options[i][0].equals("-sourcepath")) {
+				sourcepath = options[i][1].split(File.pathSeparator);
+			} else if (options[i][0].equals("-linkoffline")) {
+				try {
+					externalLinks.add(options[i][1], options[i][2]);
+				} catch (IOException e) {
+					throw new RuntimeException("Couldn't read package list for '" + options[i][1] + "'", e);
+				}
+			}
+		}
+		taglets = new Taglets(this, authors, versions);
+		sourceFiles = new SourceFiles(encoding);
+		summaryOnly = modelfile == null && hasSummary(outfile, options, true);
+		needSummary = modelfile != null || hasSummary(outfile, options, false);
+	}
+
+	/**
+	 * Checks whether all (or any) of the output and the variants are
+	 * rendered with <code>-summary</code>.
+	 */
+	private static boolean hasSummary(String outfile, String[][] options, boolean all) {
+		try {
+			for (TexRenderer.Variant variant : TexRenderer.variants(outfile, options)) {
+				boolean summary = false;
+				for (String[] option : variant.options) {
+					summary |= option[0].equals("-summary");
+				}
+				if (summary != all)
+					return summary;
+			}
+		} catch (IOException e) {
+			/* already reported by validOptions */
+			return false;
+		}
+		return all;
+	}
 
 	/**
 	 * Returns how many arguments would be consumed if <code>option</code> is a
@@ -56,13 +189,10 @@ public class TexDoclet extends Doclet {
 	 *            the option to check
 	 */
 	public static int optionLength(String option) {
-		if (option.equals("-output"))
-			return 2;
-		else if (option.equals("-classfilter"))
-			return 2;
-		else if (option.equals("-see"))
-			return 2;
-		else if (option.equals("-help")) {
+		int length = docletOptionLength(option);
+		if (length > 0)
+			return length;
+		if (option.equals("-help")) {
 			System.err.println("TexDoclet Usage:");
 			System.err.println("-output <outfile>     Specifies the output file to write to.  If none");
 			System.err.println("                      specified, the default is docs.tex in the current");
@@ -73,6 +203,43 @@ public class TexDoclet extends Doclet {
 			System.err.println("-See                  Specifies the text to use for references created from block tags.");
 			System.err.println("                      For german javadocs use \"Siehe auch\" for example.");
 			System.err.println("                      The default is \"See also\".");
+			System.err.println("-model <modelfile>    Additionally save the extracted documentation to a model");
+			System.err.println("                      file which can be rendered again with TexRenderer.");
+			System.err.println("-modelonly            Only write the model file, no latex output.");
+			System.err.println("-shard <n>            The packages are shard n of a larger documentation: the");
+			System.err.println("                      model also records what the other shards need, merge the");
+			System.err.println("                      models of all shards with TexRenderer.");
+			System.err.println("-index <indexfile>    Write an index of all packages, classes and members to");
+			System.err.println("                      indexfile (input it instead of using makeindex).");
+			System.err.println("-linkoffline <url> <dir>");
+			System.err.println("                      References to packages listed in the element-list or");
+			System.err.println("                      package-list in dir become links to the documentation");
+			System.err.println("                      at url.");
+			System.err.println("-labelprefix <prefix> Prefix of all labels. The default is \"texdoclet:\".");
+			System.err.println("-splitdir <dir>       Write each package to its own file in dir, the output");
+			System.err.println("                      file inputs them.");
+			System.err.println("-variant <outfile> <optionsfile>");
+			System.err.println("                      Additionally write outfile from the same documentation,");
+			System.err.println("                      but with the options in optionsfile (-see, -See, -index,");
+			System.err.println("                      -labelprefix, -templates or -summary, one per line).");
+			System.err.println("-codedir <dir>        Write the contents of <pre> blocks to files in dir (once");
+			System.err.println("                      for each distinct block) and input them verbatim.");
+			System.err.println("-imagedir <dir>       Convert the images of <img> tags to PNG files in dir and");
+			System.err.println("                      include them as graphics.");
+			System.err.println("-templates <file>     Use the output templates in file (see templates.tex)");
+			System.err.println("                      instead of the default ones.");
+			System.err.println("-threads <n>          Render the classes on n threads and assemble the output");
+			System.err.println("                      in a memory mapped file.");
+			System.err.println("-listings <pattern>   List the source of the classes and members matching the");
+			System.err.println("                      regular expression (like com\\.example\\.Foo#bar), besides");
+			System.err.println("                      the ones tagged with @listing.");
+			System.err.println("-summary              Only write the first sentence of each comment, the");
+			System.err.println("                      members of a class in one table.");
+			System.err.println("-author               Include @author paragraphs.");
+			System.err.println("-version              Include @version paragraphs.");
+			System.err.println("-lint                 Only check the html of all comments and report the");
+			System.err.println("                      problems, no output is written.");
+			System.err.println("-strictrefs           Fail if references to undocumented elements remain.");
 
 			return 1;
 		}
@@ -82,7 +249,61 @@ public class TexDoclet extends Doclet {
 	}
 
 	/**
-	 * Checks the passed options and their arguments for validity.
+	 * Returns how many arguments an option of TexDoclet consumes or 0 if it is
+	 * not a TexDoclet option.
+	 */
+	static int docletOptionLength(String option) {
+		if (option.equals("-output"))
+			return 2;
+		else if (option.equals("-classfilter"))
+			return 2;
+		else if (option.equals("-see"))
+			return 2;
+		else if (option.equals("-See"))
+			return 2;
+		else if (option.equals("-model"))
+			return 2;
+		else if (option.equals("-modelonly"))
+			return 1;
+		else if (option.equals("-index"))
+			return 2;
+		else if (option.equals("-linkoffline"))
+			return 3;
+		else if (option.equals("-strictrefs"))
+			return 1;
+		else if (option.equals("-labelprefix"))
+			return 2;
+		else if (option.equals("-variant"))
+			return 3;
+		else if (option.equals("-codedir"))
+			return 2;
+		else if (option.equals("-imagedir"))
+			return 2;
+		else if (option.equals("-templates"))
+			return 2;
+		else if (option.equals("-lint"))
+			return 1;
+		else if (option.equals("-shard"))
+			return 2;
+		else if (option.equals("-splitdir"))
+			return 2;
+		else if (option.equals("-threads"))
+			return 2;
+		else if (option.equals("-listings"))
+			return 2;
+		else if (option.equals("-summary"))
+			return 1;
+		else if (option.equals("-author"))
+			return 1;
+		else if (option.equals("-version"))
+			return 1;
+		return 0;
+	}
+
+	/**
+	 * Checks the passed options and their arguments for validity. The options
+	 * themselves are picked up again from the <code>RootDoc</code> in
+	 * {@link #start}.
 	 * 
 	 * @param args
 	 *            the arguments to check
@@ -90,15 +311,60 @@ public class TexDoclet extends Doclet {
 	 *            the interface to use for reporting errors
 	 */
 	static public boolean validOptions(String[][] args, DocErrorReporter err) {
-		for (int i = 0; i < args.length; ++i) {
-			if (args[i][0].equals("-output")) {
-				outfile = args[i][1];
-			} else if (args[i][0].equals("-see")) {
-				refInlineName = args[i][1];
-			} else if (args[i][0].equals("-See")) {
-				refBlockName = args[i][1];
+		boolean model = false;
+		boolean sharded = false;
+		for (String[] arg : args) {
+			if (arg[0].equals("-model")) {
+				model = true;
+			} else if (arg[0].equals("-shard")) {
+				sharded = true;
+				try {
+					if (Integer.parseInt(arg[1]) < 0)
+						throw new NumberFormatException();
+				} catch (NumberFormatException e) {
+					err.printError("-shard needs a shard number >= 0, not '" + arg[1] + "'");
+					return false;
+				}
+			} else if (arg[0].equals("-threads")) {
+				try {
+					if (Integer.parseInt(arg[1]) < 1)
+						throw new NumberFormatException();
+				} catch (NumberFormatException e) {
+					err.printError("-threads needs a number of threads >= 1, not '" + arg[1] + "'");
+					return false;
+				}
+			} else if (arg[0].equals("-listings")) {
+				try {
+					Pattern.compile(arg[1]);
+				} catch (PatternSyntaxException e) {
+					err.printError("Invalid -listings pattern: " + e.getMessage());
+					return false;
+				}
+			} else if (arg[0].equals("-linkoffline")) {
+				if (!new File(arg[2], "element-list").isFile() && !new File(arg[2], "package-list").isFile()) {
+					err.printError("No element-list or package-list found in '" + arg[2] + "'");
+					return false;
+				}
+			} else if (arg[0].equals("-variant")) {
+				try {
+					TexRenderer.readVariantOptions(arg[2]);
+				} catch (IOException e) {
+					err.printError("Invalid variant options: " + e.getMessage());
+					return false;
+				}
+			} else if (arg[0].equals("-templates")) {
+				try {
+					Templates.load(arg[1]);
+				} catch (IOException e) {
+					err.printError("Invalid templates: " + e.getMessage());
+					return false;
+				}
 			}
 		}
+		if (sharded && !model) {
+			err.printError("-shard needs -model, the model file is the result of a shard");
+			return false;
+		}
 		return true;
 	}
 
@@ -114,95 +380,319 @@ public class TexDoclet extends Doclet {
 	 *            the root of the starting document
 	 */
 	public static boolean start(RootDoc root) {
+		return new TexDoclet(root.options()).run(root);
+	}
+
+	private boolean run(RootDoc root) {
 		System.out.println("TexDoclet 4.0, Copyright 2009 - Matthias Braun");
 		System.out.println("based on TexDoclet v3.0, Copyright 2003 - Gregg Wonderly.");
 		System.out.println("http://texdoclet.dev.java.net - on the World Wide Web.");
 
+		if (lint)
+			return HTMLLint.check(root);
+
+		DocModel model = extract(root);
+
 		try {
-			/* Open output file and force an UTF-8 encoding */
-			FileOutputStream bytestream = new FileOutputStream(outfile);
-			OutputStreamWriter charstream = new OutputStreamWriter(bytestream, Charset.forName("UTF-8"));
-			os = new PrintWriter(charstream);
-		} catch (FileNotFoundException fileNotFound) {
-			throw new RuntimeException("Couldn't create output file '" + outfile + "'", fileNotFound);
+			if (modelfile != null) {
+				try {
+					model.write(modelfile);
+				} catch (IOException e) {
+					throw new RuntimeException("Couldn't write model file '" + modelfile + "'", e);
+				}
+				if (modelonly)
+					return true;
+			}
+
+			boolean unresolved;
+			try {
+				unresolved = TexRenderer.renderAll(model, outfile, options);
+			} catch (IOException e) {
+				throw new RuntimeException("Couldn't render the output", e);
+			}
+			return !(strictrefs && unresolved);
+		} finally {
+			/* images of the comments were converted during extraction and rendering */
+			context.waitForImages();
 		}
+	}
 
+	/**
+	 * Extracts the documentation of all specified packages and classes.
+	 */
+	private DocModel extract(RootDoc root) {
+		DocModel model = new DocModel();
 		ClassDoc[] classes = root.specifiedClasses();
 		PackageDoc[] packages = root.specifiedPackages();
 
+		/* labels have to be known before the first comment is converted */
+		for (PackageDoc pkg : packages) {
+			indexMembers(pkg.allClasses());
+		}
+		indexMembers(classes);
+		for (ClassDoc cd : root.classes()) {
+			typeUses.addClass(cd.qualifiedName());
+		}
+
+		SourcePosition overview = root.position();
+		if (overview != null && overview.file() != null && overview.file().getName().endsWith(".html")) {
+			model.overview = new Comment();
+			addFile(model.overview, overview.file());
+		}
+
 		for (PackageDoc pkg : packages) {
 
 			System.out.println("* Package: " + pkg.name());
 
-			os.println("\\begin{texdocpackage}{" + HTMLToTex.convert(pkg.name()) + "}");
-			os.println("\\label{texdoclet:" + pkg.name() + "}");
-			os.println("");
+			PackageInfo info = new PackageInfo();
+			info.name = pkg.name();
+			SourcePosition position = pkg.position();
+			if (position != null && position.file() != null && position.file().getName().equals("package.html")) {
+				/* converted while rendering, package.html files can be big */
+				if (!summaryOnly) {
+					info.comment = new Comment();
+					addFile(info.comment, position.file());
+				}
+				info.summary = convertSummary(pkg, null, null);
+			} else if (pkg.inlineTags().length > 0) {
+				if (!summaryOnly)
+					info.comment = convertComment(pkg);
+				info.summary = convertSummary(pkg, null, info.comment);
+			}
+			if (!summaryOnly) {
+				extractSees(pkg, info.sees);
+				extractTags(pkg, info.tags);
+			}
+			extractClasses(pkg.allClasses(), info.classes);
+			model.packages.add(info);
+		}
+
+		extractClasses(classes, model.classes);
 
-			printSees(pkg);
+		/* uses are known only after all members were visited */
+		for (int id = 0; id < typeUses.classCount(); ++id) {
+			ClassInfo info = classInfos.get(id);
+			if (info != null)
+				info.uses.addAll(typeUses.uses(id));
+			else if (!typeUses.uses(id).isEmpty())
+				model.foreignUses.put(typeUses.className(id), typeUses.uses(id));
+		}
+		if (shard >= 0)
+			model.shard = shard;
+		model.tables = context.tableCount();
+		model.link();
+		return model;
+	}
 
-			printClasses(pkg.allClasses());
+	/** the member last registered by {@link #addUses} and its id */
+	private MemberDoc usingMember;
+	private int usingMemberId;
 
-			os.println("\\end{texdocpackage}");
-			os.println("");
-			os.println("");
-			os.println("");
+	/**
+	 * Records the uses of documented types (also as type arguments or
+	 * wildcard bounds) in <code>type</code> by a member.
+	 */
+	private void addUses(MemberDoc member, Type type, int kind) {
+		ClassDoc cd = type.asClassDoc();
+		if (cd != null && type.asTypeVariable() == null) {
+			/* shards also record uses of classes documented by other shards */
+			int id = shard >= 0 ? typeUses.addClass(cd.qualifiedName()) : typeUses.classId(cd.qualifiedName());
+			if (id >= 0) {
+				if (usingMember != member) {
+					String text = member.containingClass().name() + "." + member.name();
+					if (member instanceof ExecutableMemberDoc)
+						text += ((ExecutableMemberDoc) member).flatSignature();
+					usingMemberId = typeUses.addMember(TexEscapes.escape(text), memberLabel(member));
+					usingMember = member;
+				}
+				typeUses.addUse(id, usingMemberId, kind);
+			}
+		}
+		ParameterizedType parameterized = type.asParameterizedType();
+		if (parameterized != null) {
+			for (Type argument : parameterized.typeArguments()) {
+				addUses(member, argument, kind);
+			}
+		}
+		WildcardType wildcard = type.asWildcardType();
+		if (wildcard != null) {
+			for (Type bound : wildcard.extendsBounds()) {
+				addUses(member, bound, kind);
+			}
+			for (Type bound : wildcard.superBounds()) {
+				addUses(member, bound, kind);
+			}
 		}
+	}
 
-		printClasses(classes);
+	private Comment convertComment(Doc d) {
+		return convertComment(d.inlineTags(), null);
+	}
 
-		os.close();
-		return true;
+	private Comment convertComment(Doc d, MethodDoc md) {
+		return convertComment(d.inlineTags(), md);
 	}
 
-	private static void printComment(Doc d) {
-		printComment(d.inlineTags(), null);
+	private Comment convertComment(Tag t) {
+		return convertComment(t.inlineTags(), null);
 	}
 
-	private static void printComment(Doc d, MethodDoc md) {
-		printComment(d.inlineTags(), md);
+	/**
+	 * Adds an html file converted while rendering to a comment and reserves
+	 * the numbers of its tables, so they stay the same wherever the file is
+	 * rendered.
+	 */
+	private void addFile(Comment comment, File file) {
+		int tables = 0;
+		try {
+			FileInputStream stream = new FileInputStream(file);
+			try {
+				Reader in = encoding != null ? new InputStreamReader(stream, encoding) : new InputStreamReader(stream);
+				tables = HTMLToTex.countTables(in);
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Warning: Couldn't read '" + file + "': " + e.getMessage());
+		}
+		comment.addFile(file.getPath(), encoding, context.reserveTables(tables), tables);
 	}
 
-	private static void printComment(Tag t) {
-		printComment(t.inlineTags(), null);
+	/**
+	 * Converts the first sentence of the comment of <code>d</code>, null if
+	 * there is no comment. The conversion of a comment with a single sentence
+	 * is the converted comment itself, if it was converted. A first sentence
+	 * of just <code>{&#64;inheritDoc}</code> is the one of the overridden
+	 * method. Returns null without converting anything if no summary is
+	 * needed.
+	 */
+	private Comment convertSummary(Doc d, MethodDoc md, Comment comment) {
+		if (!needSummary)
+			return null;
+		Tag[] first = d.firstSentenceTags();
+		if (first.length == 0)
+			return null;
+		if (md != null && first.length == 1 && first[0].kind().equals("@inheritDoc")) {
+			MethodDoc overridden = findSuperMethod(md);
+			if (overridden != null)
+				return convertSummary(overridden, overridden, null);
+		}
+		if (comment != null && isSameText(first, d.inlineTags()))
+			return comment;
+		return convertComment(first, md);
 	}
 
-	private static void printComment(Tag t, MethodDoc md) {
-		printComment(t.inlineTags(), md);
+	private static boolean isSameText(Tag[] tags, Tag[] others) {
+		if (tags.length != others.length)
+			return false;
+		for (int i = 0; i < tags.length; ++i) {
+			if (!tags[i].kind().equals(others[i].kind()) || !tags[i].text().equals(others[i].text()))
+				return false;
+		}
+		return true;
 	}
 
-	private static void printComment(Tag[] tags, MethodDoc md) {
+	private Comment convertComment(Tag[] tags, MethodDoc md) {
+		Comment comment = new Comment();
+		File base = null;
+		if (context.getImageDirectory() != null && tags.length > 0)
+			base = sourceDirectory(tags[0].holder());
 		for (Tag t : tags) {
 			if (t instanceof SeeTag) {
 				SeeTag st = (SeeTag) t;
-				os.print(HTMLToTex.convert(t.text(), md));
-				if (st.referencedClassName() != null) {
-					os.print(" (" + refInlineName.toLowerCase());
-					os.print("\\ref{");
-					os.print(getLabel(st));
-					os.print("})");
-				}
+				comment.addReference(resolve(st, HTMLToTex.convert(t.text(), md, base, context)));
 			} else if (t.kind().equals("@inheritDoc")) {
 				MethodDoc overridden = findSuperMethod(md);
 				if (overridden == null) {
 					System.err.println("Warning: No overridden method found for {@inheritDoc} (" + md.name() + ")");
-					os.print(HTMLToTex.convert(t.text(), md));
+					comment.addText(HTMLToTex.convert(t.text(), md, base, context));
 				} else {
-					os.print("\\texdocinheritdoc{");
-					os.print(overridden.containingClass().qualifiedName());
-					os.print("}{");
-					printComment(overridden.inlineTags(), overridden);
-					os.print("}");
+					comment.addInherited(overridden.containingClass().qualifiedName(),
+							convertComment(overridden.inlineTags(), overridden));
 				}
+			} else if (t.kind().equals("Text")) {
+				comment.addText(HTMLToTex.convert(t.text(), md, base, context));
 			} else {
-				if (!t.kind().equals("Text")) {
-					System.err.println("Warning: Unknown Tag of kind " + t.kind());
+				TexTaglet taglet = taglets.inlineTaglet(t.name());
+				if (taglet != null) {
+					String tex = taglet.toTex(new Tag[] { t }, taglets);
+					if (tex != null)
+						comment.addText(tex);
+				} else {
+					taglets.warnUnknown(t, true);
+					comment.addText(HTMLToTex.convert(t.text(), md, base, context));
 				}
-				os.print(HTMLToTex.convert(t.text(), md));
 			}
 		}
+		return comment;
+	}
+
+	/**
+	 * Converts html from the comment of <code>holder</code> (for taglets).
+	 */
+	String convertHTML(String html, Doc holder) {
+		File base = context.getImageDirectory() != null ? sourceDirectory(holder) : null;
+		return HTMLToTex.convert(html, holder instanceof MethodDoc ? (MethodDoc) holder : null, base, context);
 	}
 
-	private static MethodDoc findSuperMethod(MethodDoc md) {
+	/**
+	 * Converts the block tags of a comment which are not part of the model
+	 * otherwise (like <code>&#64;since</code>) with their taglets. All tags of
+	 * one name are passed to the taglet at once.
+	 */
+	private void extractTags(Doc d, List<NamedComment> infos) {
+		Map<String, List<Tag>> byName = new LinkedHashMap<String, List<Tag>>();
+		for (Tag t : d.tags()) {
+			if (t instanceof ParamTag || t instanceof ThrowsTag || t instanceof SeeTag || t.kind().equals("@return"))
+				continue;
+			List<Tag> tags = byName.get(t.name());
+			if (tags == null) {
+				tags = new ArrayList<Tag>();
+				byName.put(t.name(), tags);
+			}
+			tags.add(t);
+		}
+		for (List<Tag> tags : byName.values()) {
+			TexTaglet taglet = taglets.blockTaglet(tags.get(0).name());
+			if (taglet == null) {
+				taglets.warnUnknown(tags.get(0), false);
+				continue;
+			}
+			String tex = taglet.toTex(tags.toArray(new Tag[tags.size()]), taglets);
+			if (tex != null) {
+				Comment comment = new Comment();
+				comment.addText(tex);
+				infos.add(new NamedComment(taglet.getName(), comment));
+			}
+		}
+	}
+
+	/**
+	 * Returns the directory image sources in the comment of <code>d</code>
+	 * are relative to: the directory of its source file or the directory of
+	 * its package in the source path. Returns null if neither is known.
+	 */
+	private File sourceDirectory(Doc d) {
+		SourcePosition position = d.position();
+		if (position != null && position.file() != null)
+			return position.file().getAbsoluteFile().getParentFile();
+		PackageDoc pkg = null;
+		if (d instanceof PackageDoc)
+			pkg = (PackageDoc) d;
+		else if (d instanceof ProgramElementDoc)
+			pkg = ((ProgramElementDoc) d).containingPackage();
+		if (pkg == null)
+			return null;
+		String relative = pkg.name().replace('.', File.separatorChar);
+		for (String root : sourcepath) {
+			File dir = new File(root, relative);
+			if (dir.isDirectory())
+				return dir;
+		}
+		return null;
+	}
+
+	private MethodDoc findSuperMethod(MethodDoc md) {
 		MethodDoc overrides = md.overriddenMethod();
 		if (overrides != null)
 			return overrides;
@@ -218,7 +708,7 @@ public class TexDoclet extends Doclet {
 		return null;
 	}
 
-	private static void printClasses(ClassDoc[] classes) {
+	private void extractClasses(ClassDoc[] classes, List<ClassInfo> infos) {
 		Arrays.sort(classes, new Comparator<ClassDoc>() {
 			public int compare(ClassDoc o1, ClassDoc o2) {
 				return o1.name().compareToIgnoreCase(o2.name());
@@ -226,92 +716,250 @@ public class TexDoclet extends Doclet {
 		});
 
 		for (ClassDoc cd : classes) {
-			printClass(cd);
+			infos.add(extractClass(cd));
 		}
 	}
 
-	private static void printClass(ClassDoc cd) {
-		String type;
+	private ClassInfo extractClass(ClassDoc cd) {
+		ClassInfo info = new ClassInfo();
 		if (cd.isInterface()) {
-			type = "interface";
+			info.kind = "interface";
 		} else if (cd.isEnum()) { 
-			type = "enum";
+			info.kind = "enum";
 		} else {
-			type = "class";
+			info.kind = "class";
+		}
+		info.packageName = cd.containingPackage().name();
+		info.name = cd.name();
+		if (!summaryOnly) {
+			info.comment = convertComment(cd);
+			extractSees(cd, info.sees);
+			extractTags(cd, info.tags);
+		}
+		info.summary = convertSummary(cd, null, info.comment);
+		if (cd.superclass() != null)
+			info.supertypes.add(cd.superclass().qualifiedName());
+		for (ClassDoc iface : cd.interfaces()) {
+			info.supertypes.add(iface.qualifiedName());
 		}
+		int id = typeUses.classId(cd.qualifiedName());
+		if (id >= 0)
+			classInfos.put(id, info);
+		extractFields(cd.fields(), info.fields);
+		extractExecutableMembers(cd.constructors(), info.constructors);
+		extractFields(cd.enumConstants(), info.enums);
+		extractExecutableMembers(cd.methods(), info.methods);
+		extractInherited(cd, "field", inheritedMembers.fields(cd), info.inherited);
+		extractInherited(cd, "method", inheritedMembers.methods(cd), info.inherited);
+		info.listing = listing(cd, cd.qualifiedName());
+		return info;
+	}
+
+	/**
+	 * Returns the source of a class or member if it is selected for a
+	 * listing, otherwise null.
+	 *
+	 * @param name
+	 *            name matched against the <code>-listings</code> pattern
+	 */
+	private String listing(ProgramElementDoc d, String name) {
+		boolean tagged = d.tags("listing").length > 0;
+		if (!tagged && (listings == null || !listings.matcher(name).matches()))
+			return null;
+		/* implicit members (like default constructors) have the position of their class */
+		if (d instanceof MemberDoc && isImplicit((MemberDoc) d))
+			return null;
+		String listing = sourceFiles.listing(d.position());
+		if (listing == null && tagged)
+			System.err.println("Warning: No source found for @listing (" + d.position() + ")");
+		return listing;
+	}
 
-		os.println("\\begin{texdocclass}{" + type + "}{"
-				+ HTMLToTex.convert(cd.name()) + "}");
+	/**
+	 * Adds the members of a class declared by supertypes, grouped by the
+	 * declaring supertype in the order of the hierarchy and sorted by name.
+	 */
+	private void extractInherited(ClassDoc cd, String kind, Collection<? extends MemberDoc> members,
+			List<Inherited> infos) {
+		Map<String, Inherited> groups = new LinkedHashMap<String, Inherited>();
+		for (MemberDoc member : members) {
+			ClassDoc from = member.containingClass();
+			if (from.qualifiedName().equals(cd.qualifiedName()))
+				continue;
+			Inherited group = groups.get(from.qualifiedName());
+			if (group == null) {
+				group = new Inherited(kind, new Reference(TexEscapes.escape(from.qualifiedName()), classLabel(from),
+						null));
+				groups.put(from.qualifiedName(), group);
+			}
+			String text = member.name();
+			if (member instanceof ExecutableMemberDoc)
+				text += ((ExecutableMemberDoc) member).flatSignature();
+			group.members.add(new Reference(TexEscapes.escape(text), memberLabel(member), null));
+		}
+		for (Inherited group : groups.values()) {
+			Collections.sort(group.members, new Comparator<Reference>() {
+				public int compare(Reference o1, Reference o2) {
+					return o1.text.compareToIgnoreCase(o2.text);
+				}
+			});
+			infos.add(group);
+		}
+	}
 
-		os.println("\\label{texdoclet:" + cd.containingPackage().name() + "." + cd.name() + "}");
-		os.println("\\begin{texdocclassintro}");
-		printComment(cd);
-		os.println("\\end{texdocclassintro}");
+	/**
+	 * Checks whether a member was not written in the source, but added by
+	 * the compiler (like the <code>values()</code> method of enums).
+	 */
+	private static boolean isImplicit(MemberDoc member) {
+		if (member.isSynthetic())
+			return true;
+		SourcePosition position = member.position();
+		SourcePosition classPosition = member.containingClass().position();
+		if (position == null || position.file() == null || classPosition == null)
+			return true;
+		return position.line() == classPosition.line() && position.file().equals(classPosition.file());
+	}
 
-		printSees(cd);
+	/**
+	 * Resolves the target of a reference. The label is set whenever the
+	 * target has one, even if it is not part of this run (it may be defined
+	 * by a model merged later, the renderer checks all labels). Targets not
+	 * part of this run also get the URL of their external documentation if
+	 * it is known.
+	 */
+	private Reference resolve(SeeTag t, String text) {
+		PackageDoc pkg = t.referencedPackage();
+		if (pkg != null) {
+			String url = pkg.isIncluded() ? null : externalLinks.packageURL(pkg.name());
+			return new Reference(text, pkg.name(), url);
+		}
 
-		FieldDoc[] fields = cd.fields();
-		if (fields.length > 0) {
-			os.println("\\begin{texdocclassfields}");
-			printFields(cd, fields);
-			os.println("\\end{texdocclassfields}");
+		ClassDoc cls = t.referencedClass();
+		MemberDoc member = t.referencedMember();
+		String label = null;
+		if (member != null) {
+			label = memberLabels.get(memberKey(member));
+			/* the member may be documented by another shard */
+			if (label == null && shard >= 0 && !member.containingClass().isIncluded()
+					&& (member.isPublic() || member.isProtected()))
+				label = memberLabel(member);
+			/* if not documented, fall back to the class */
+		}
+		if (cls != null) {
+			if (label == null)
+				label = classLabel(cls);
+			if (cls.isIncluded() || externalLinks.isEmpty())
+				return new Reference(text, label, null);
+			if (member == null)
+				return new Reference(text, label, externalLinks.classURL(cls.qualifiedName(), null, null));
+			List<String> parameterTypes = null;
+			if (member instanceof ExecutableMemberDoc)
+				parameterTypes = erasedParameterTypes((ExecutableMemberDoc) member);
+			return new Reference(text, label,
+					externalLinks.classURL(cls.qualifiedName(), member.name(), parameterTypes));
 		}
+		String name = t.referencedClassName();
+		if (name != null) {
+			/* class is unknown to javadoc, try the name as it is */
+			String url = externalLinks.isEmpty() ? null : externalLinks.classURL(name, null, null);
+			return new Reference(text, name, url);
+		}
+		return new Reference(text, null, null);
+	}
+
+	/** Returns the label of a class (without prefix) */
+	private static String classLabel(ClassDoc cd) {
+		return cd.containingPackage().name() + "." + cd.name();
+	}
 
-		ConstructorDoc[] constructors = cd.constructors();
-		if (constructors.length > 0) {
-			os.println("\\begin{texdocclassconstructors}");
-			printExecutableMembers(cd, constructors, "constructor");
-			os.println("\\end{texdocclassconstructors}");
+	/**
+	 * Returns the name of a type after erasure of type variables, in the form
+	 * it is used in member keys and labels.
+	 */
+	private static String erasedTypeName(Type type) {
+		String name;
+		TypeVariable var = type.asTypeVariable();
+		if (var != null) {
+			Type[] bounds = var.bounds();
+			name = bounds.length > 0 ? bounds[0].qualifiedTypeName() : "java.lang.Object";
+		} else {
+			name = type.qualifiedTypeName();
 		}
-		
-		FieldDoc[] enums = cd.enumConstants();
-		if (enums.length > 0) {
-			os.println("\\begin{texdocenums}");
-			printEnums(cd, enums);
-			os.println("\\end{texdocenums}");
+		return name + type.dimension().replace("...", "[]");
+	}
+
+	/**
+	 * Returns the member name plus erased parameter types for executable
+	 * members, like <code>foo(int,java.lang.String[])</code>.
+	 */
+	private static String memberSignature(MemberDoc member) {
+		if (!(member instanceof ExecutableMemberDoc))
+			return member.name();
+		StringBuilder res = new StringBuilder(member.name());
+		res.append('(');
+		String separator = "";
+		for (String type : erasedParameterTypes((ExecutableMemberDoc) member)) {
+			res.append(separator);
+			res.append(type);
+			separator = ",";
 		}
+		res.append(')');
+		return res.toString();
+	}
 
-		MethodDoc[] methods = cd.methods();
-		if (methods.length > 0) {
-			os.println("\\begin{texdocclassmethods}");
-			printExecutableMembers(cd, methods, "method");
-			os.println("\\end{texdocclassmethods}");
+	private static List<String> erasedParameterTypes(ExecutableMemberDoc member) {
+		List<String> types = new ArrayList<String>();
+		for (Parameter param : member.parameters()) {
+			types.add(erasedTypeName(param.type()));
 		}
+		return types;
+	}
 
-		os.println("\\end{texdocclass}");
-		os.println("");
-		os.println("");
+	/** Returns the key of a member in {@link #memberLabels} */
+	private static String memberKey(MemberDoc member) {
+		return member.containingClass().qualifiedName() + "#" + memberSignature(member);
 	}
 
-	private static String getLabel(SeeTag t) {
-		if (t.referencedPackage() != null) {
-			return "texdoclet:" + t.referencedPackage().name();
-		} else {
-			return "texdoclet:" + t.referencedClassName();
+	/** Returns the label of a member (without prefix) */
+	private static String memberLabel(MemberDoc member) {
+		return classLabel(member.containingClass()) + ":" + memberSignature(member);
+	}
+
+	private void indexMembers(MemberDoc[] members) {
+		for (MemberDoc member : members) {
+			memberLabels.put(memberKey(member), memberLabel(member));
 		}
 	}
 
-	private static void printSees(Doc d) {
-		SeeTag[] sts = d.seeTags();
-		if (sts.length > 0) {
-			os.println("\\begin{texdocsees}{" + refBlockName + "}");
-			for (SeeTag st : sts) {
-				os.print("\\texdocsee");
-				os.print("{" + HTMLToTex.convert(st.text()) + "}");
-				os.print("{" + getLabel(st) + "}");
-				os.println("");
-			}
-			os.println("\\end{texdocsees}");
+	/**
+	 * Adds the labels of all members of the classes to the member index.
+	 */
+	private void indexMembers(ClassDoc[] classes) {
+		for (ClassDoc cd : classes) {
+			taglets.indexConstants(cd.fields());
+			indexMembers(cd.fields());
+			indexMembers(cd.enumConstants());
+			indexMembers(cd.constructors());
+			indexMembers(cd.methods());
+		}
+	}
+
+	private void extractSees(Doc d, List<Reference> sees) {
+		for (SeeTag st : d.seeTags()) {
+			sees.add(resolve(st, HTMLToTex.convert(st.text(), context)));
 		}
 	}
 
 	/**
-	 * Enumerates the fields passed and formats them using Tex statements.
+	 * Extracts the fields or enum constants passed.
 	 * 
 	 * @param fields
-	 *            the fields to format
+	 *            the fields to extract
+	 * @param infos
+	 *            the list receiving the extracted fields
 	 */
-	private static void printFields(ClassDoc cd, FieldDoc[] fields) {
+	private void extractFields(FieldDoc[] fields, List<MemberInfo> infos) {
 
 		/* sort by name */
 		Arrays.sort(fields, new Comparator<FieldDoc>() {
@@ -321,54 +969,33 @@ public class TexDoclet extends Doclet {
 		});
 
 		for (FieldDoc f : fields) {
-			os.print("\\texdocfield");
-			os.print("{" + HTMLToTex.convert(f.modifiers()) + "}");
-			os.print("{" + HTMLToTex.convert(typeToString(f.type())) + "}");
-			os.print("{" + HTMLToTex.convert(f.name()) + "}");
-			os.print("{");
-			printComment(f);
-			os.print("}");
-			printSees(f);
-			os.println("");
-		}
-	}
-	
-	/**
-	 * Enumerates the enum constants passed and formats them using Tex statements.
-	 * 
-	 * @param enums
-	 *            the enum constants to format
-	 */
-	private static void printEnums(ClassDoc cd, FieldDoc[] enums) {
-
-		/* sort by name */
-		Arrays.sort(enums, new Comparator<FieldDoc>() {
-			public int compare(FieldDoc o1, FieldDoc o2) {
-				return o1.name().compareToIgnoreCase(o2.name());
+			MemberInfo info = new MemberInfo();
+			info.modifiers = f.modifiers();
+			info.type = typeToString(f.type());
+			info.name = f.name();
+			info.label = memberLabel(f);
+			if (!summaryOnly) {
+				info.comment = convertComment(f);
+				extractSees(f, info.sees);
+				extractTags(f, info.tags);
 			}
-		});
-
-		for (FieldDoc f : enums) {
-			os.print("\\texdocenum");
-			os.print("{" + HTMLToTex.convert(f.name()) + "}");
-			os.print("{");
-			printComment(f);
-			os.print("}");
-			printSees(f);
-			os.println("");
+			info.summary = convertSummary(f, null, info.comment);
+			if (!f.isEnumConstant())
+				addUses(f, f.type(), TypeUses.FIELD);
+			infos.add(info);
 		}
 	}
 
 	/**
-	 * Enumerates the members of a section of the document and formats them
-	 * using Tex statements.
+	 * Extracts the constructors or methods of a class.
 	 * 
-	 * @param mems
-	 *            the members of this entity
+	 * @param members
+	 *            the members to extract
+	 * @param infos
+	 *            the list receiving the extracted members
 	 * @see #start
 	 */
-	private static void printExecutableMembers(ClassDoc cd,
-			ExecutableMemberDoc[] members, String type) {
+	private void extractExecutableMembers(ExecutableMemberDoc[] members, List<MemberInfo> infos) {
 
 		/* sort by name */
 		Arrays.sort(members, new Comparator<ExecutableMemberDoc>() {
@@ -378,71 +1005,48 @@ public class TexDoclet extends Doclet {
 		});
 
 		for (ExecutableMemberDoc member : members) {
-			os.print("\\texdoc" + type);
-			os.print("{" + HTMLToTex.convert(member.modifiers()) + "}");
-			if (member instanceof MethodDoc) {
-				MethodDoc methodDoc = (MethodDoc) member;
-				os.print("{" + HTMLToTex.convert(typeToString(methodDoc.returnType())) + "}");
+			MemberInfo info = new MemberInfo();
+			info.modifiers = member.modifiers();
+			MethodDoc methodDoc = member instanceof MethodDoc ? (MethodDoc) member : null;
+			if (methodDoc != null)
+				info.type = typeToString(methodDoc.returnType());
+			if (!summaryOnly) {
+				info.comment = convertComment(member, methodDoc);
+				extractParameterDocumentation(member, info);
+				extractSees(member, info.sees);
+				extractTags(member, info.tags);
 			}
-			os.print("{" + HTMLToTex.convert(member.name()) + "}");
-			os.print("{" + HTMLToTex.convert(formatParameters(member)) + "}");
-			if (member instanceof MethodDoc) {
-				MethodDoc methodDoc = (MethodDoc) member;
-				os.print("{");
-				printComment(member, methodDoc);
-				os.print("}");
-			} else {
-				os.print("{");
-				printComment(member);
-				os.print("}");
+			info.summary = convertSummary(member, methodDoc, info.comment);
+			info.name = member.name();
+			info.label = memberLabel(member);
+			info.parameters = formatParameters(member);
+			if (methodDoc != null)
+				addUses(member, methodDoc.returnType(), TypeUses.RETURN);
+			for (Parameter param : member.parameters()) {
+				addUses(member, param.type(), TypeUses.PARAMETER);
 			}
-			os.print("{");
-			printParameterDocumentation(member);
-			os.print("}");
-			printSees(member);
-			os.println("");
+			info.listing = listing(member, member.containingClass().qualifiedName() + "#" + member.name());
+			infos.add(info);
 		}
 	}
 
-	private static void printParameterDocumentation(ExecutableMemberDoc member) {
+	private void extractParameterDocumentation(ExecutableMemberDoc member, MemberInfo info) {
 		/* handle @param tags */
-		ParamTag[] tags = member.paramTags();
-		if (tags.length > 0) {
-			os.println("\\begin{texdocparameters}");
-			for (ParamTag tag : member.paramTags()) {
-				os.print("\\texdocparameter{" + HTMLToTex.convert(tag.parameterName()) + "}");
-				os.print("{");
-				printComment(tag);
-				os.println("}");
-			}
-			os.println("\\end{texdocparameters}");
+		for (ParamTag tag : member.paramTags()) {
+			info.paramDocs.add(new NamedComment(tag.parameterName(), convertComment(tag)));
 		}
 
 		/* handle @return tag */
-		Tag[] returnTags = member.tags("return");
-		if (returnTags.length > 0) {
-			os.print("\\texdocreturn{");
-			for (Tag returnTag : returnTags) {
-				printComment(returnTag);
-			}
-			os.print("}");
-			os.println("");
-		}
-		ThrowsTag[] throwsTags = member.throwsTags();
-		if (throwsTags.length > 0) {
-			os.println("\\begin{texdocthrows}");
-			for (ThrowsTag tag : member.throwsTags()) {
-				os.print("\\texdocthrow{" + HTMLToTex.convert(tag.exceptionName()) + "}");
-				os.print("{");
-				printComment(tag);
-				os.print("}");
-				os.println("");
-			}
-			os.println("\\end{texdocthrows}");
+		for (Tag returnTag : member.tags("return")) {
+			info.returnDocs.add(convertComment(returnTag));
+		}
+
+		for (ThrowsTag tag : member.throwsTags()) {
+			info.throwsDocs.add(new NamedComment(tag.exceptionName(), convertComment(tag)));
 		}
 	}
 
-	private static String formatParameters(ExecutableMemberDoc member) {
+	private String formatParameters(ExecutableMemberDoc member) {
 		StringBuilder res = new StringBuilder();
 
 		res.append("(");
@@ -462,7 +1066,7 @@ public class TexDoclet extends Doclet {
 	/**
 	 * Converts a DocLet type back to java syntax
 	 */
-	private static String typeToString(Type type) {
+	private String typeToString(Type type) {
 		String tstring;
 		ParameterizedType ptype = type.asParameterizedType();
 		if (ptype != null) {
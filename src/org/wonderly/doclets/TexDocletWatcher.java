@@ -0,0 +1,249 @@
+package org.wonderly.doclets;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps TexDoclet running and regenerates the latex output whenever a source
+ * file of a documented package changes. Javadoc is invoked inside the running
+ * JVM and only for the packages whose files changed; the documentation of
+ * all other packages is kept in memory. This avoids paying for JVM startup,
+ * javadoc bootstrap and a cold JIT on every change.
+ *
+ * It takes the same arguments as a javadoc call with TexDoclet (without
+ * <code>-doclet</code>/<code>-docletpath</code>), but only packages can be
+ * specified:
+ *
+ * <pre>
+ * java -cp texdoclet.jar:tools.jar org.wonderly.doclets.TexDocletWatcher -sourcepath src -output docs.tex my.cool.package
+ * </pre>
+ *
+ * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
+ */
+public class TexDocletWatcher {
+	/** time to wait for further changes before regenerating */
+	private static final long SETTLE_MILLIS = 200;
+	/** javadoc options which take an argument */
+	private static final Set<String> JAVADOC_ARG_OPTIONS = new HashSet<String>(Arrays.asList(
+			"-sourcepath", "-classpath", "-cp", "-bootclasspath", "-extdirs", "-encoding",
+			"-locale", "-source", "-overview", "-exclude", "-docencoding", "-charset"));
+
+	private final List<String> javadocArgs = new ArrayList<String>();
+	private final List<String> packages = new ArrayList<String>();
+	private final List<File> sourcepath = new ArrayList<File>();
+	private String outfile = "docs.tex";
+	private final List<String[]> renderOptions = new ArrayList<String[]>();
+
+	private final DocModel model = new DocModel();
+	private final File modelfile;
+	private WatchService watcher;
+	private final Map<WatchKey, String> watchedPackages = new HashMap<WatchKey, String>();
+	/**
+	 * packages whose rendering changed by the last extraction, null if all
+	 * changed
+	 */
+	private Set<String> changedPackages = null;
+
+	private TexDocletWatcher(String[] args) throws IOException {
+		String path = ".";
+		for (int i = 0; i < args.length; ++i) {
+			String arg = args[i];
+			if (arg.startsWith("-")) {
+				int length = JAVADOC_ARG_OPTIONS.contains(arg) ? 2 : TexDoclet.docletOptionLength(arg);
+				if (length <= 0)
+					length = 1;
+				if (i + length > args.length)
+					usage();
+				if (TexDoclet.docletOptionLength(arg) > 0) {
+					String[] option = new String[length];
+					System.arraycopy(args, i, option, 0, length);
+					renderOptions.add(option);
+				}
+				if (arg.equals("-output")) {
+					outfile = args[i + 1];
+				} else if (arg.equals("-model") || arg.equals("-modelonly") || arg.equals("-shard")) {
+					/* the watcher uses its own model file */
+				} else if (arg.equals("-doclet") || arg.equals("-docletpath")) {
+					usage();
+				} else {
+					if (arg.equals("-sourcepath"))
+						path = args[i + 1];
+					for (int a = 0; a < length; ++a) {
+						javadocArgs.add(args[i + a]);
+					}
+				}
+				i += length - 1;
+			} else if (arg.endsWith(".java")) {
+				System.err.println("Only packages can be watched: " + arg);
+				usage();
+			} else {
+				packages.add(arg);
+			}
+		}
+		if (packages.isEmpty())
+			usage();
+		for (String dir : path.split(File.pathSeparator)) {
+			sourcepath.add(new File(dir));
+		}
+
+		modelfile = File.createTempFile("texdoclet", ".model");
+		modelfile.deleteOnExit();
+	}
+
+	private static void usage() {
+		System.err.println("Usage: TexDocletWatcher [javadoc and TexDoclet options] packages...");
+		System.exit(1);
+	}
+
+	/**
+	 * Runs javadoc with TexDoclet for the given packages and merges the
+	 * resulting documentation into the model. Records the packages whose
+	 * rendering changed: the given ones and the ones whose known subtypes or
+	 * uses changed.
+	 */
+	private boolean extract(Collection<String> pkgs) {
+		List<String> args = new ArrayList<String>(javadocArgs);
+		args.add("-model");
+		args.add(modelfile.getPath());
+		args.add("-modelonly");
+		/* as a shard the run records the uses of and references to the other packages */
+		args.add("-shard");
+		args.add("0");
+		args.addAll(pkgs);
+
+		int res = com.sun.tools.javadoc.Main.execute("javadoc", TexDoclet.class.getName(),
+				TexDoclet.class.getClassLoader(), args.toArray(new String[args.size()]));
+		if (res != 0) {
+			System.err.println("javadoc failed, keeping the old documentation of " + pkgs);
+			return false;
+		}
+		Set<String> labels = model.definedLabels();
+		Map<String, String> links = model.packageLinks();
+		boolean renumbered;
+		try {
+			renumbered = model.replacePackages(DocModel.read(modelfile.getPath()));
+			/* subtypes in other packages may have changed */
+			model.link();
+			model.dropForeignUses();
+		} catch (IOException e) {
+			System.err.println("Couldn't read model file: " + e.getMessage());
+			return false;
+		}
+		/* new table names or references resolved or broken in any package */
+		if (renumbered || !labels.equals(model.definedLabels())) {
+			changedPackages = null;
+			return true;
+		}
+		changedPackages = new TreeSet<String>(pkgs);
+		for (Map.Entry<String, String> entry : model.packageLinks().entrySet()) {
+			if (!entry.getValue().equals(links.get(entry.getKey())))
+				changedPackages.add(entry.getKey());
+		}
+		return true;
+	}
+
+	/**
+	 * Renders the model (and all variants) into temporary files and moves
+	 * them over the output files, so an output is never seen half written.
+	 * With <code>-splitdir</code> only the files of the changed packages are
+	 * written again.
+	 */
+	private void render() throws IOException {
+		String[][] options = renderOptions.toArray(new String[renderOptions.size()][]);
+		for (TexRenderer.Variant variant : TexRenderer.variants(outfile, options)) {
+			File out = new File(variant.output).getAbsoluteFile();
+			File tmp = File.createTempFile("texdoclet", ".tex", out.getParentFile());
+			TexRenderer renderer = new TexRenderer(null);
+			renderer.applyOptions(variant.options);
+			renderer.setChangedPackages(changedPackages);
+			renderer.render(model, tmp.getPath());
+			Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			System.out.println("Wrote " + variant.output);
+		}
+	}
+
+	private void watchDirectories() throws IOException {
+		watcher = FileSystems.getDefault().newWatchService();
+		for (String pkg : packages) {
+			String relative = pkg.replace('.', File.separatorChar);
+			for (File root : sourcepath) {
+				File dir = new File(root, relative);
+				if (!dir.isDirectory())
+					continue;
+				WatchKey key = dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+				watchedPackages.put(key, pkg);
+			}
+		}
+	}
+
+	/**
+	 * Adds the package of the watch key to <code>changed</code> when one of
+	 * the events concerns a file which is part of the documentation.
+	 */
+	private void collectChanges(WatchKey key, Set<String> changed) {
+		String pkg = watchedPackages.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			Object context = event.context();
+			if (!(context instanceof Path))
+				continue;
+			String name = ((Path) context).getFileName().toString();
+			if (pkg != null && (name.endsWith(".java") || name.equals("package.html")))
+				changed.add(pkg);
+		}
+		key.reset();
+	}
+
+	private void run() throws IOException, InterruptedException {
+		if (extract(packages))
+			render();
+		watchDirectories();
+		System.out.println("Watching " + watchedPackages.size() + " directories, press Ctrl-C to stop");
+
+		for (;;) {
+			Set<String> changed = new TreeSet<String>();
+			collectChanges(watcher.take(), changed);
+			/* editors often produce several events for one save */
+			WatchKey key;
+			while ((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+				collectChanges(key, changed);
+			}
+			if (changed.isEmpty())
+				continue;
+
+			System.out.println("* Changed: " + changed);
+			if (extract(changed))
+				render();
+		}
+	}
+
+	public static void main(String[] args) {
+		try {
+			new TexDocletWatcher(args).run();
+		} catch (IOException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.exit(1);
+		} catch (InterruptedException e) {
+			/* stopped */
+		}
+	}
+}
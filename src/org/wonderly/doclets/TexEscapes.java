@@ -0,0 +1,194 @@
+package org.wonderly.doclets;
+
+/**
+ * Classification of all characters for the html to latex conversion. Every
+ * <code>char</code> is either copied unchanged, replaced by a fixed latex
+ * string or needs special handling by the converter (like the start of a tag
+ * or entity). The converter copies runs of unchanged characters in bulk.
+ *
+ * Accented letters are left alone as the preamble uses inputenc with utf8,
+ * but symbols, math characters and greek letters (which inputenc does not
+ * know) are replaced by latex commands.
+ *
+ * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
+ */
+final class TexEscapes {
+	/** character is copied unchanged */
+	static final byte PLAIN = 0;
+	/** character is replaced by {@link #replacement(char)} */
+	static final byte ESCAPE = 1;
+	/** character needs special handling by the converter */
+	static final byte SPECIAL = 2;
+	/** blank, plain except in preformatted text */
+	static final byte SPACE = 3;
+
+	private static final byte[] KIND = new byte[Character.MAX_VALUE + 1];
+	private static final String[] REPLACEMENT = new String[Character.MAX_VALUE + 1];
+
+	private TexEscapes() {
+	}
+
+	/**
+	 * Returns the kind of a character: {@link #PLAIN}, {@link #ESCAPE},
+	 * {@link #SPECIAL} or {@link #SPACE}.
+	 */
+	static byte kind(char c) {
+		return KIND[c];
+	}
+
+	/**
+	 * Returns the latex replacement of a character or null if it is copied
+	 * unchanged. Special characters are replaced by their plain escaped form.
+	 */
+	static String replacement(char c) {
+		return REPLACEMENT[c];
+	}
+
+	/**
+	 * Appends the escaped form of a code point.
+	 */
+	static void append(StringBuffer ret, int codePoint) {
+		String r = codePoint <= Character.MAX_VALUE ? REPLACEMENT[codePoint] : null;
+		if (r != null)
+			ret.append(r);
+		else
+			ret.appendCodePoint(codePoint);
+	}
+
+	/**
+	 * Returns the escaped form of text which contains no html.
+	 */
+	static String escape(String text) {
+		StringBuffer res = null;
+		int copied = 0;
+		for (int i = 0; i < text.length(); ++i) {
+			String r = REPLACEMENT[text.charAt(i)];
+			if (r == null)
+				continue;
+			if (res == null)
+				res = new StringBuffer(text.length() + 16);
+			res.append(text, copied, i);
+			res.append(r);
+			copied = i + 1;
+		}
+		if (res == null)
+			return text;
+		res.append(text, copied, text.length());
+		return res.toString();
+	}
+
+	private static void escape(char c, String replacement) {
+		KIND[c] = ESCAPE;
+		REPLACEMENT[c] = replacement;
+	}
+
+	private static void special(char c, String replacement) {
+		KIND[c] = SPECIAL;
+		REPLACEMENT[c] = replacement;
+	}
+
+	private static void math(String chars, String commands) {
+		String[] cmds = commands.split(" ");
+		for (int i = 0; i < cmds.length; ++i) {
+			escape(chars.charAt(i), "$\\" + cmds[i] + "$");
+		}
+	}
+
+	private static void text(String chars, String commands) {
+		String[] cmds = commands.split(" ");
+		for (int i = 0; i < cmds.length; ++i) {
+			escape(chars.charAt(i), "\\" + cmds[i] + "{}");
+		}
+	}
+
+	static {
+		/* latex specials */
+		escape('_', "\\_");
+		escape('%', "\\%");
+		escape('$', "\\$");
+		escape('#', "\\#");
+		escape('^', "$\\wedge$");
+		escape('}', "$\\}$");
+		escape('/', "$/$");
+		escape('>', "\\textgreater{}");
+		escape('\\', "$\\backslash$");
+		escape('~', "\\textasciitilde{}");
+
+		/* handled by the converter */
+		KIND[' '] = SPACE;
+		special('{', "$\\{$");
+		special('<', "\\textless{}");
+		special('&', "\\&");
+		special('\r', null);
+		special('\n', null);
+
+		/* other control characters are dropped */
+		for (char c = 0; c < ' '; ++c) {
+			if (c != '\t' && c != '\r' && c != '\n')
+				escape(c, "");
+		}
+		escape('\u007f', "");
+
+		/* spaces and invisible characters */
+		escape('\u00a0', "~");
+		escape('\u00ad', "\\-");
+		escape('\u2002', "\\enspace{}");
+		escape('\u2003', "\\quad{}");
+		escape('\u2009', "\\,");
+		escape('\u200b', "");
+		escape('\u200c', "");
+		escape('\u200d', "");
+		escape('\u2060', "");
+		escape('\ufeff', "");
+
+		/* typography */
+		text("¡¿§¶©®™°ªº«»‹›",
+				"textexclamdown textquestiondown S P textcopyright textregistered texttrademark textdegree "
+						+ "textordfeminine textordmasculine guillemotleft guillemotright guilsinglleft guilsinglright");
+		text("–—‘’‚“”„…•†‡‰€£¥¢¤",
+				"textendash textemdash textquoteleft textquoteright quotesinglbase textquotedblleft "
+						+ "textquotedblright quotedblbase dots textbullet dag ddag textperthousand texteuro "
+						+ "pounds textyen textcent textcurrency");
+		escape('‐', "-");
+		escape('‑', "\\mbox{-}");
+		escape('‒', "\\textendash{}");
+		escape('―', "\\textemdash{}");
+		escape('′', "$'$");
+		escape('″', "$''$");
+
+		/* math */
+		math("±×÷¬·µ∓∗∘∙√∝∞∠∣∥",
+				"pm times div neg cdot mu mp ast circ bullet surd propto infty angle mid parallel");
+		math("∀∂∃∅∇∈∉∋∏∑∧∨∩∪∫∮",
+				"forall partial exists emptyset nabla in notin ni prod sum wedge vee cap cup int oint");
+		math("∼≃≅≈≠≡≤≥≪≫⊂⊃⊆⊇⊕⊗⊥⋅",
+				"sim simeq cong approx neq equiv leq geq ll gg subset supset subseteq supseteq oplus otimes perp cdot");
+		math("←↑→↓↔↦⇐⇒⇔⌈⌉⌊⌋⟨⟩〈〉",
+				"leftarrow uparrow rightarrow downarrow leftrightarrow mapsto Leftarrow Rightarrow Leftrightarrow "
+						+ "lceil rceil lfloor rfloor langle rangle langle rangle");
+		math("ℑℜ℘ℓℵℏ⋯",
+				"Im Re wp ell aleph hbar cdots");
+		escape('−', "$-$");
+		escape('²', "$^2$");
+		escape('³', "$^3$");
+		escape('¹', "$^1$");
+		escape('¼', "$\\frac14$");
+		escape('½', "$\\frac12$");
+		escape('¾', "$\\frac34$");
+
+		/* greek */
+		math("αβγδεζηθικλμνξ",
+				"alpha beta gamma delta epsilon zeta eta theta iota kappa lambda mu nu xi");
+		math("πρςστυφχψωϑϕϖ",
+				"pi rho varsigma sigma tau upsilon phi chi psi omega vartheta phi varpi");
+		math("ΓΔΘΛΞΠΣΥΦΨΩ",
+				"Gamma Delta Theta Lambda Xi Pi Sigma Upsilon Phi Psi Omega");
+		escape('ο', "o");
+		/* capitals which look like latin letters */
+		String latin = "ABEZHIKMNOPTX";
+		String greek = "ΑΒΕΖΗΙΚΜΝΟΡΤΧ";
+		for (int i = 0; i < greek.length(); ++i) {
+			escape(greek.charAt(i), "\\ensuremath{\\mathrm{" + latin.charAt(i) + "}}");
+		}
+	}
+}
@@ -0,0 +1,1040 @@
+package org.wonderly.doclets;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.wonderly.doclets.DocModel.ClassInfo;
+import org.wonderly.doclets.DocModel.Comment;
+import org.wonderly.doclets.DocModel.Fragment;
+import org.wonderly.doclets.DocModel.Inherited;
+import org.wonderly.doclets.DocModel.MemberInfo;
+import org.wonderly.doclets.DocModel.NamedComment;
+import org.wonderly.doclets.DocModel.PackageInfo;
+import org.wonderly.doclets.DocModel.Reference;
+import org.wonderly.doclets.DocModel.Use;
+import org.wonderly.doclets.Templates.Id;
+import org.wonderly.doclets.Templates.Slot;
+import org.wonderly.doclets.Templates.SlotWriter;
+
+/**
+ * Produces the latex output for a {@link DocModel}. This is used by the
+ * doclet itself, but can also be called standalone to render model files
+ * saved with the <code>-model</code> option of the doclet:
+ *
+ * <pre>
+ * java -cp texdoclet.jar org.wonderly.doclets.TexRenderer -output docs.tex a.model b.model
+ * </pre>
+ *
+ * Several model files are merged into one document. Models of a sharded
+ * run (written with <code>-shard</code>) are merged in shard order, so the
+ * document is the same as the one of a single run over all packages.
+ *
+ * Besides the main output any number of variants can be rendered from the
+ * same model (option <code>-variant &lt;output&gt; &lt;optionsfile&gt;</code>).
+ * The options file lists the rendering options which differ from the main
+ * output, one per line:
+ *
+ * <pre>
+ * -see siehe
+ * -See Siehe auch
+ * -labelprefix de:
+ * </pre>
+ *
+ * With <code>-summary</code> only the first sentences of the comments are
+ * written, the members of a class as rows of one table. A variant file can
+ * contain <code>-summary</code> to render a quick reference next to the full
+ * documentation.
+ *
+ * With <code>-threads &lt;n&gt;</code> the classes (also the ones of the
+ * packages) are rendered on n threads, each into its own UTF-8 encoded
+ * fragment. The fragments are copied into the memory mapped output file at
+ * offsets computed from their sizes, so no thread has to write the whole
+ * document.
+ *
+ * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
+ */
+public class TexRenderer {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** the output, while rendering a split package the file of the package */
+	private PrintWriter os;
+	private final ConversionContext context;
+	private String refInlineName = "see ";
+	private String refBlockName = "See also";
+	private String labelPrefix = "texdoclet:";
+	private String indexfile = null;
+	/** directory receiving a file per package, null to write one file */
+	private String splitdir = null;
+	/** packages whose split files are written again, null for all */
+	private Set<String> changedPackages = null;
+	private SymbolIndex index = null;
+	/** threads rendering the classes, more than one assembles a mapped file */
+	private int threads = 1;
+	/**
+	 * while rendering in parallel: the workers, the parts of the output so
+	 * far, the buffer of the output after the last part and its writer
+	 */
+	private ExecutorService workers;
+	private List<Future<byte[]>> parts;
+	private ByteArrayOutputStream pending;
+	private PrintWriter parallelOutput;
+	/** whether only the first sentences of the comments are written */
+	private boolean summary = false;
+	/** labels defined by the model being rendered */
+	private Set<String> definedLabels;
+	/** name of the package or class currently rendered (for warnings) */
+	private String currentElement;
+	/**
+	 * references to undefined labels, with the element they appear in
+	 * (shared with the renderers of the classes when rendering in parallel)
+	 */
+	private final Set<String> unresolved;
+	private Templates templates = Templates.defaults();
+	private final SlotWriter slotWriter = new SlotWriter() {
+		public void writeSlot(Id template, Slot slot, Object element) {
+			TexRenderer.this.writeSlot(template, slot, element);
+		}
+	};
+
+	/**
+	 * Creates a renderer writing to <code>os</code>.
+	 */
+	public TexRenderer(PrintWriter os) {
+		this.os = os;
+		context = new ConversionContext();
+		unresolved = Collections.synchronizedSet(new TreeSet<String>());
+	}
+
+	/**
+	 * Creates a renderer for a single class of a parallel rendering. It
+	 * renders with the options and the state of <code>parent</code>, but into
+	 * its own output.
+	 */
+	private TexRenderer(TexRenderer parent, PrintWriter os) {
+		this.os = os;
+		context = parent.context;
+		unresolved = parent.unresolved;
+		refInlineName = parent.refInlineName;
+		refBlockName = parent.refBlockName;
+		labelPrefix = parent.labelPrefix;
+		templates = parent.templates;
+		summary = parent.summary;
+		definedLabels = parent.definedLabels;
+	}
+
+	/**
+	 * Takes over the rendering related options from a list of doclet options
+	 * (like the ones in <code>RootDoc.options()</code>). Other options are
+	 * ignored.
+	 * 
+	 * @throws IOException
+	 *             if the template file can't be read
+	 */
+	public void applyOptions(String[][] options) throws IOException {
+		for (String[] option : options) {
+			if (option[0].equals("-see")) {
+				refInlineName = option[1];
+			} else if (option[0].equals("-See")) {
+				refBlockName = option[1];
+			} else if (option[0].equals("-index")) {
+				indexfile = option[1];
+			} else if (option[0].equals("-splitdir")) {
+				splitdir = option[1];
+			} else if (option[0].equals("-labelprefix")) {
+				labelPrefix = option[1];
+			} else if (option[0].equals("-codedir")) {
+				context.setCodeDirectory(option[1]);
+			} else if (option[0].equals("-imagedir")) {
+				context.setImageDirectory(option[1]);
+			} else if (option[0].equals("-templates")) {
+				templates = Templates.load(option[1]);
+			} else if (option[0].equals("-summary")) {
+				summary = true;
+			} else if (option[0].equals("-threads")) {
+				try {
+					threads = Integer.parseInt(option[1]);
+				} catch (NumberFormatException e) {
+					threads = 0;
+				}
+				if (threads < 1)
+					throw new IOException("-threads needs a number of threads >= 1, not '" + option[1] + "'");
+			}
+		}
+	}
+
+	/**
+	 * Returns true if <code>option</code> only affects rendering, so it can be
+	 * changed for a variant.
+	 */
+	static boolean isRenderOption(String option) {
+		return option.equals("-see") || option.equals("-See") || option.equals("-index")
+				|| option.equals("-labelprefix") || option.equals("-templates") || option.equals("-splitdir")
+				|| option.equals("-summary");
+	}
+
+	/**
+	 * An output file and the options it is rendered with.
+	 */
+	static class Variant {
+		final String output;
+		final String[][] options;
+
+		Variant(String output, String[][] options) {
+			this.output = output;
+			this.options = options;
+		}
+	}
+
+	/**
+	 * Reads the options file of a variant. Each line holds one rendering
+	 * option, its argument (if it has one) is the rest of the line after a
+	 * single blank. Empty lines and lines starting with <code>#</code> are
+	 * ignored.
+	 */
+	static String[][] readVariantOptions(String filename) throws IOException {
+		List<String[]> options = new ArrayList<String[]>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(filename), UTF8));
+		try {
+			String line;
+			int lineno = 0;
+			while ((line = in.readLine()) != null) {
+				++lineno;
+				if (line.trim().length() == 0 || line.startsWith("#"))
+					continue;
+				int blank = line.indexOf(' ');
+				String name = blank < 0 ? line : line.substring(0, blank);
+				boolean argument = TexDoclet.docletOptionLength(name) > 1;
+				if (!isRenderOption(name) || argument != blank >= 0)
+					throw new IOException(filename + ":" + lineno + ": expected a rendering option"
+							+ (argument ? " with argument" : " without argument"));
+				options.add(argument ? new String[] { name, line.substring(blank + 1) } : new String[] { name });
+			}
+		} finally {
+			in.close();
+		}
+		return options.toArray(new String[options.size()][]);
+	}
+
+	/**
+	 * Returns the outputs to render: <code>outfile</code> with the given
+	 * options followed by one entry for each <code>-variant</code>. Variants
+	 * use the same options, overridden by the ones from their options file.
+	 * Only <code>-index</code> and <code>-splitdir</code> are not inherited,
+	 * as two outputs must not write the same files, and
+	 * <code>-summary</code>, so variants can be full or summaries.
+	 */
+	static List<Variant> variants(String outfile, String[][] options) throws IOException {
+		List<Variant> variants = new ArrayList<Variant>();
+		variants.add(new Variant(outfile, options));
+		List<String[]> inherited = new ArrayList<String[]>();
+		for (String[] option : options) {
+			if (!option[0].equals("-index") && !option[0].equals("-splitdir") && !option[0].equals("-summary"))
+				inherited.add(option);
+		}
+		for (String[] option : options) {
+			if (!option[0].equals("-variant"))
+				continue;
+			List<String[]> variantOptions = new ArrayList<String[]>(inherited);
+			variantOptions.addAll(Arrays.asList(readVariantOptions(option[2])));
+			variants.add(new Variant(option[1], variantOptions.toArray(new String[variantOptions.size()][])));
+		}
+		return variants;
+	}
+
+	/**
+	 * Renders the model into <code>outfile</code> and into all variants.
+	 * Returns true if any output contains references which could not be
+	 * resolved.
+	 */
+	static boolean renderAll(DocModel model, String outfile, String[][] options) throws IOException {
+		boolean unresolved = false;
+		for (Variant variant : variants(outfile, options)) {
+			TexRenderer renderer = new TexRenderer(null);
+			renderer.applyOptions(variant.options);
+			renderer.render(model, variant.output);
+			unresolved |= renderer.hasUnresolvedReferences();
+		}
+		return unresolved;
+	}
+
+	/**
+	 * Opens <code>filename</code> for writing latex output. The output is
+	 * always UTF-8 encoded.
+	 */
+	static PrintWriter openOutput(String filename) {
+		try {
+			/* Open output file and force an UTF-8 encoding */
+			FileOutputStream bytestream = new FileOutputStream(filename);
+			OutputStreamWriter charstream = new OutputStreamWriter(bytestream, UTF8);
+			return new PrintWriter(charstream);
+		} catch (FileNotFoundException fileNotFound) {
+			throw new RuntimeException("Couldn't create output file '" + filename + "'", fileNotFound);
+		}
+	}
+
+	/**
+	 * Restricts writing the files of split packages to the given packages,
+	 * the existing files of the other packages are kept and only input by
+	 * the output. Null writes the files of all packages again.
+	 */
+	public void setChangedPackages(Set<String> packages) {
+		changedPackages = packages;
+	}
+
+	/**
+	 * Renders the whole model.
+	 */
+	public void render(DocModel model) {
+		printPackages(model);
+		printClasses(model.classes);
+		finish();
+	}
+
+	/**
+	 * Renders the whole model into the file <code>filename</code>. With more
+	 * than one thread the classes are rendered in parallel and assembled in
+	 * the memory mapped output file.
+	 *
+	 * @throws IOException
+	 *             if the output file can't be written
+	 */
+	public void render(DocModel model, String filename) throws IOException {
+		PrintWriter main = os;
+		if (threads <= 1) {
+			os = openOutput(filename);
+			try {
+				render(model);
+			} finally {
+				os.close();
+				os = main;
+			}
+			return;
+		}
+
+		pending = new ByteArrayOutputStream();
+		os = new PrintWriter(new OutputStreamWriter(pending, UTF8));
+		parallelOutput = os;
+		parts = new ArrayList<Future<byte[]>>();
+		workers = Executors.newFixedThreadPool(threads);
+		try {
+			printPackages(model);
+			printClasses(model.classes);
+			endPart();
+			List<byte[]> fragments = new ArrayList<byte[]>(parts.size());
+			for (Future<byte[]> part : parts) {
+				fragments.add(part.get());
+			}
+			MappedOutput.write(filename, fragments, workers, threads);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Rendering the classes was interrupted", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Rendering the classes failed", e.getCause());
+		} finally {
+			workers.shutdown();
+			workers = null;
+			parts = null;
+			pending = null;
+			parallelOutput = null;
+			os = main;
+		}
+		finish();
+	}
+
+	/**
+	 * Prepares rendering the model and prints everything before the classes:
+	 * the overview and the packages.
+	 */
+	private void printPackages(DocModel model) {
+		if (indexfile != null)
+			index = new SymbolIndex();
+		definedLabels = model.definedLabels();
+		unresolved.clear();
+
+		if (model.overview != null && !summary)
+			write(Id.OVERVIEW, model.overview);
+
+		for (PackageInfo pkg : model.packages) {
+			currentElement = pkg.name;
+			addIndexEntry(pkg.name, convert(pkg.name), "package", pkg.name);
+			if (splitdir != null)
+				printSplit(pkg);
+			else
+				write(Id.PACKAGE, pkg);
+		}
+	}
+
+	/**
+	 * Ends the current part of a parallel rendering: the output buffered so
+	 * far becomes a fragment of the output file.
+	 */
+	private void endPart() {
+		os.flush();
+		final byte[] bytes = pending.toByteArray();
+		pending.reset();
+		FutureTask<byte[]> part = new FutureTask<byte[]>(new Callable<byte[]>() {
+			public byte[] call() {
+				return bytes;
+			}
+		});
+		part.run();
+		parts.add(part);
+	}
+
+	/**
+	 * Renders each class into its own UTF-8 encoded fragment on the worker
+	 * threads and adds the fragments to the parts of the output after the
+	 * output so far. The index entries are added by the calling thread, in
+	 * the same order as when rendering serially.
+	 */
+	private void submitClasses(List<ClassInfo> classes) {
+		endPart();
+		for (final ClassInfo cls : classes) {
+			addIndexEntries(cls);
+			parts.add(workers.submit(new Callable<byte[]>() {
+				public byte[] call() {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					TexRenderer renderer = new TexRenderer(TexRenderer.this, new PrintWriter(new OutputStreamWriter(
+							bytes, UTF8)));
+					renderer.printClass(cls);
+					renderer.os.flush();
+					return bytes.toByteArray();
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Writes the index and reports the unresolved references after all
+	 * output was rendered.
+	 */
+	private void finish() {
+		if (index != null) {
+			PrintWriter indexWriter = openOutput(indexfile);
+			index.write(indexWriter);
+			indexWriter.close();
+			index = null;
+		}
+
+		/* images of html files were converted in the background */
+		context.waitForImages();
+
+		if (unresolved.size() > 0) {
+			System.err.println("Warning: " + unresolved.size()
+					+ " references to undocumented elements were rendered as plain text:");
+			for (String ref : unresolved) {
+				System.err.println("  " + ref);
+			}
+		}
+	}
+
+	/**
+	 * Writes a package into its own file in the split directory and inputs
+	 * the file from the output. The file of an unchanged package is kept.
+	 */
+	private void printSplit(PackageInfo pkg) {
+		File dir = new File(splitdir);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new RuntimeException("Couldn't create directory '" + splitdir + "'");
+		File file = new File(splitdir, pkg.name + ".tex");
+		String filename = file.getPath();
+		if (changedPackages == null || changedPackages.contains(pkg.name) || !file.isFile()) {
+			PrintWriter main = os;
+			os = openOutput(filename);
+			try {
+				write(Id.PACKAGE, pkg);
+			} finally {
+				os.close();
+				os = main;
+			}
+		} else {
+			for (ClassInfo cls : pkg.classes) {
+				addIndexEntries(cls);
+			}
+		}
+		write(Id.INPUT, filename.replace(File.separatorChar, '/'));
+	}
+
+	/**
+	 * Returns true if the last {@link #render} call found references to
+	 * labels not defined in the document.
+	 */
+	public boolean hasUnresolvedReferences() {
+		return unresolved.size() > 0;
+	}
+
+	/**
+	 * Checks whether a reference can be rendered as <code>\\ref</code>.
+	 * References to labels which are not part of the document are recorded
+	 * for the summary unless they can be rendered as external link.
+	 */
+	private boolean isResolved(String label, String url) {
+		if (label == null)
+			return false;
+		if (definedLabels.contains(label))
+			return true;
+		if (url == null)
+			unresolved.add(label + " (in " + currentElement + ")");
+		return false;
+	}
+
+	private String convert(String text) {
+		return HTMLToTex.convert(text, context);
+	}
+
+	/**
+	 * Escapes the characters of an URL which would break the argument of a
+	 * latex macro.
+	 */
+	private static String escapeURL(String url) {
+		return url.replace("%", "\\%").replace("#", "\\#");
+	}
+
+	private void addIndexEntry(String key, String text, String description, String label) {
+		if (index != null)
+			index.add(key, text, description, labelPrefix + label);
+	}
+
+	private void addIndexEntries(List<MemberInfo> members, String kind, ClassInfo cls) {
+		if (index == null)
+			return;
+		String description = kind + " in " + convert(cls.name);
+		for (MemberInfo m : members) {
+			String text = convert(m.name);
+			if (m.parameters != null)
+				text += convert(m.parameters);
+			addIndexEntry(m.name, text, description, m.label);
+		}
+	}
+
+	/** Renders a template for an element into the output */
+	private void write(Id template, Object element) {
+		templates.write(template, os, slotWriter, element);
+	}
+
+	private void printComment(Comment comment) {
+		if (comment == null)
+			return;
+		for (Fragment f : comment.fragments) {
+			switch (f.kind) {
+			case Fragment.REFERENCE:
+				if (isResolved(f.label, f.url))
+					write(Id.REFERENCE, f);
+				else if (f.url != null)
+					write(Id.EXTERNALLINK, f);
+				else
+					os.print(f.text);
+				break;
+			case Fragment.FILE:
+				/* the numbers of its tables were reserved when the model was extracted */
+				context.setTableCount(f.firstTable);
+				printFile(f.text, f.label);
+				if (context.tableCount() > f.firstTable + f.tables)
+					System.err.println("Warning: '" + f.text + "' has more tables than when it was extracted, table names may clash");
+				break;
+			case Fragment.INHERITED:
+				write(Id.INHERITDOC, f);
+				break;
+			default:
+				os.print(f.text);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Converts an html document directly into the output.
+	 */
+	private void printFile(String filename, String encoding) {
+		try {
+			FileInputStream stream = new FileInputStream(filename);
+			try {
+				Reader in = encoding != null ? new InputStreamReader(stream, encoding) : new InputStreamReader(stream);
+				os.flush();
+				HTMLToTex.convert(in, os, new File(filename).getAbsoluteFile().getParentFile(), context);
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Warning: Couldn't convert '" + filename + "': " + e.getMessage());
+		}
+	}
+
+	private void printClasses(List<ClassInfo> classes) {
+		/* the classes of split packages are written serially into their files */
+		if (parallelOutput != null && os == parallelOutput) {
+			submitClasses(classes);
+			return;
+		}
+		for (ClassInfo cls : classes) {
+			addIndexEntries(cls);
+			printClass(cls);
+		}
+	}
+
+	private void printClass(ClassInfo cls) {
+		currentElement = cls.label();
+		write(summary ? Id.SUMMARYCLASS : Id.CLASS, cls);
+	}
+
+	private void addIndexEntries(ClassInfo cls) {
+		if (index == null)
+			return;
+		addIndexEntry(cls.name, convert(cls.name), cls.kind + " in " + convert(cls.packageName), cls.label());
+		addIndexEntries(cls.fields, "field", cls);
+		addIndexEntries(cls.constructors, "constructor", cls);
+		addIndexEntries(cls.enums, "enum constant", cls);
+		addIndexEntries(cls.methods, "method", cls);
+	}
+
+	/**
+	 * Prints the block tags converted by taglets after a comment.
+	 */
+	private void printTags(List<NamedComment> tags) {
+		for (NamedComment tag : tags) {
+			printComment(tag.comment);
+		}
+	}
+
+	/** Prints a label with prefix, nothing for a missing label */
+	private void printLabel(String label) {
+		if (label != null) {
+			os.print(labelPrefix);
+			os.print(label);
+		}
+	}
+
+	/**
+	 * Prints a list of known classes. Classes which are not part of the
+	 * document (like when rendering a partial model) are printed without
+	 * reference.
+	 */
+	private void printKnownClasses(List<Reference> classes) {
+		for (int i = 0; i < classes.size(); ++i) {
+			if (i > 0)
+				write(Id.SEPARATOR, null);
+			printKnownClass(classes.get(i));
+		}
+	}
+
+	private void printKnownClass(Reference cls) {
+		write(definedLabels.contains(cls.label) ? Id.KNOWNCLASS : Id.KNOWNCLASSPLAIN, cls);
+	}
+
+	private void printSees(List<Reference> sees) {
+		if (sees.size() > 0)
+			write(Id.SEES, sees);
+	}
+
+	private void printMembers(List<MemberInfo> members, Id template) {
+		for (MemberInfo member : members) {
+			write(template, member);
+		}
+	}
+
+	/**
+	 * Fills a slot of a template. The element is the model object the
+	 * template is rendered for, the list of references for
+	 * <code>sees</code>, the file name for <code>input</code>, the source
+	 * code for <code>listing</code> and null for <code>separator</code>.
+	 */
+	private void writeSlot(Id template, Slot slot, Object element) {
+		if (element instanceof ClassInfo)
+			writeClassSlot(template, slot, (ClassInfo) element);
+		else if (element instanceof MemberInfo)
+			writeMemberSlot(template, slot, (MemberInfo) element);
+		else if (element instanceof Reference)
+			writeReferenceSlot(slot, (Reference) element);
+		else if (element instanceof Fragment)
+			writeFragmentSlot(slot, (Fragment) element);
+		else if (element instanceof NamedComment)
+			writeNamedCommentSlot(slot, (NamedComment) element);
+		else if (element instanceof Use)
+			writeUseSlot(slot, (Use) element);
+		else if (element instanceof Inherited)
+			writeInheritedSlot(slot, (Inherited) element);
+		else if (element instanceof PackageInfo)
+			writePackageSlot(slot, (PackageInfo) element);
+		else if (element instanceof Comment)
+			printComment((Comment) element);
+		else if (element instanceof List)
+			writeSeesSlot(slot, (List<?>) element);
+		else if (element instanceof String)
+			os.print(element);
+	}
+
+	private void writePackageSlot(Slot slot, PackageInfo pkg) {
+		switch (slot) {
+		case NAME:
+			os.print(convert(pkg.name));
+			break;
+		case LABEL:
+			printLabel(pkg.name);
+			break;
+		case INTRO:
+			if (summary ? pkg.summary != null : pkg.comment != null || pkg.tags.size() > 0)
+				write(Id.PACKAGEINTRO, pkg);
+			break;
+		case COMMENT:
+			if (summary) {
+				printComment(pkg.summary);
+				break;
+			}
+			printComment(pkg.comment);
+			printTags(pkg.tags);
+			break;
+		case SEES:
+			if (!summary)
+				printSees(pkg.sees);
+			break;
+		case CLASSES:
+			printClasses(pkg.classes);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void writeClassSlot(Id template, Slot slot, ClassInfo cls) {
+		switch (slot) {
+		case KIND:
+			os.print(cls.kind);
+			break;
+		case NAME:
+			os.print(convert(cls.name));
+			break;
+		case LABEL:
+			printLabel(cls.label());
+			break;
+		case COMMENT:
+			if (template == Id.SUMMARYCLASS) {
+				printComment(cls.summary);
+				break;
+			}
+			printComment(cls.comment);
+			printTags(cls.tags);
+			break;
+		case SUBCLASSES:
+			if (cls.subclasses.size() > 0)
+				write(Id.SUBCLASSES, cls);
+			break;
+		case SUBINTERFACES:
+			if (cls.subinterfaces.size() > 0)
+				write(Id.SUBINTERFACES, cls);
+			break;
+		case IMPLEMENTORS:
+			if (cls.implementors.size() > 0)
+				write(Id.IMPLEMENTORS, cls);
+			break;
+		case TYPES:
+			if (template == Id.SUBCLASSES)
+				printKnownClasses(cls.subclasses);
+			else if (template == Id.SUBINTERFACES)
+				printKnownClasses(cls.subinterfaces);
+			else
+				printKnownClasses(cls.implementors);
+			break;
+		case USES:
+			if (template == Id.CLASS) {
+				if (cls.uses.size() > 0)
+					write(Id.USES, cls);
+				break;
+			}
+			/* members not part of the document are printed without reference */
+			for (Use use : cls.uses) {
+				write(definedLabels.contains(use.label) ? Id.USE : Id.USEPLAIN, use);
+			}
+			break;
+		case SEES:
+			printSees(cls.sees);
+			break;
+		case FIELDS:
+			if (cls.fields.size() > 0)
+				write(Id.FIELDS, cls);
+			break;
+		case CONSTRUCTORS:
+			if (cls.constructors.size() > 0)
+				write(Id.CONSTRUCTORS, cls);
+			break;
+		case ENUMS:
+			if (cls.enums.size() > 0)
+				write(Id.ENUMS, cls);
+			break;
+		case METHODS:
+			if (cls.methods.size() > 0)
+				write(Id.METHODS, cls);
+			break;
+		case MEMBERS:
+			if (template == Id.SUMMARYCLASS) {
+				if (cls.fields.size() + cls.constructors.size() + cls.enums.size() + cls.methods.size() > 0)
+					write(Id.SUMMARYMEMBERS, cls);
+			} else if (template == Id.SUMMARYMEMBERS) {
+				printMembers(cls.fields, Id.SUMMARYMEMBER);
+				printMembers(cls.constructors, Id.SUMMARYMEMBER);
+				printMembers(cls.enums, Id.SUMMARYMEMBER);
+				printMembers(cls.methods, Id.SUMMARYMEMBER);
+			} else if (template == Id.FIELDS)
+				printMembers(cls.fields, Id.FIELD);
+			else if (template == Id.CONSTRUCTORS)
+				printMembers(cls.constructors, Id.CONSTRUCTOR);
+			else if (template == Id.ENUMS)
+				printMembers(cls.enums, Id.ENUM);
+			else
+				printMembers(cls.methods, Id.METHOD);
+			break;
+		case INHERITED:
+			for (Inherited group : cls.inherited) {
+				write(group.kind.equals("field") ? Id.INHERITEDFIELDS : Id.INHERITEDMETHODS, group);
+			}
+			break;
+		case LISTING:
+			if (cls.listing != null)
+				write(Id.LISTING, cls.listing);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void writeMemberSlot(Id template, Slot slot, MemberInfo member) {
+		switch (slot) {
+		case MODIFIERS:
+			os.print(convert(member.modifiers));
+			break;
+		case TYPE:
+			/* constructors in summaries have none */
+			if (member.type != null)
+				os.print(convert(member.type));
+			break;
+		case NAME:
+			os.print(convert(member.name));
+			break;
+		case LABEL:
+			printLabel(member.label);
+			break;
+		case PARAMETERS:
+			if (template != Id.PARAMETERS) {
+				/* fields in summaries have none */
+				if (member.parameters != null)
+					os.print(convert(member.parameters));
+				break;
+			}
+			for (NamedComment param : member.paramDocs) {
+				write(Id.PARAMETER, param);
+			}
+			break;
+		case COMMENT:
+			if (template == Id.SUMMARYMEMBER) {
+				printComment(member.summary);
+				break;
+			}
+			if (template != Id.RETURN) {
+				printComment(member.comment);
+				printTags(member.tags);
+				break;
+			}
+			for (Comment returnDoc : member.returnDocs) {
+				printComment(returnDoc);
+			}
+			break;
+		case PARAMDOCS:
+			if (member.paramDocs.size() > 0)
+				write(Id.PARAMETERS, member);
+			if (member.returnDocs.size() > 0)
+				write(Id.RETURN, member);
+			if (member.throwsDocs.size() > 0)
+				write(Id.THROWS, member);
+			break;
+		case THROWS:
+			for (NamedComment thrown : member.throwsDocs) {
+				write(Id.THROW, thrown);
+			}
+			break;
+		case SEES:
+			printSees(member.sees);
+			break;
+		case LISTING:
+			if (member.listing != null)
+				write(Id.LISTING, member.listing);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void writeNamedCommentSlot(Slot slot, NamedComment comment) {
+		if (slot == Slot.NAME)
+			os.print(convert(comment.name));
+		else if (slot == Slot.COMMENT)
+			printComment(comment.comment);
+	}
+
+	private void writeReferenceSlot(Slot slot, Reference ref) {
+		if (slot == Slot.TEXT)
+			os.print(ref.text);
+		else if (slot == Slot.LABEL)
+			printLabel(ref.label);
+		else if (slot == Slot.URL)
+			os.print(escapeURL(ref.url));
+	}
+
+	/** Fills the slots of the sees template, references are resolved here */
+	private void writeSeesSlot(Slot slot, List<?> sees) {
+		if (slot == Slot.HEADING) {
+			os.print(refBlockName);
+			return;
+		}
+		for (Object o : sees) {
+			Reference see = (Reference) o;
+			if (isResolved(see.label, see.url))
+				write(Id.SEE, see);
+			else if (see.url != null)
+				write(Id.EXTERNALSEE, see);
+			else
+				write(Id.SEEPLAIN, see);
+		}
+	}
+
+	private void writeFragmentSlot(Slot slot, Fragment f) {
+		switch (slot) {
+		case TEXT:
+			os.print(f.text);
+			break;
+		case SEE:
+			os.print(refInlineName.toLowerCase());
+			break;
+		case LABEL:
+			printLabel(f.label);
+			break;
+		case URL:
+			os.print(escapeURL(f.url));
+			break;
+		case COMMENT:
+			printComment(f.comment);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void writeUseSlot(Slot slot, Use use) {
+		if (slot == Slot.KIND)
+			os.print(use.kind);
+		else if (slot == Slot.TEXT)
+			os.print(use.text);
+		else if (slot == Slot.LABEL)
+			printLabel(use.label);
+	}
+
+	/**
+	 * Fills the slots of the inherited members of one supertype. Supertypes
+	 * and members which are not part of the document are printed without
+	 * reference.
+	 */
+	private void writeInheritedSlot(Slot slot, Inherited group) {
+		if (slot == Slot.FROM) {
+			printKnownClass(group.from);
+			return;
+		}
+		for (int i = 0; i < group.members.size(); ++i) {
+			if (i > 0)
+				write(Id.SEPARATOR, null);
+			Reference member = group.members.get(i);
+			write(definedLabels.contains(member.label) ? Id.INHERITEDMEMBER : Id.INHERITEDMEMBERPLAIN, member);
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: TexRenderer [options] modelfile...");
+		System.err.println("-output <outfile>     Specifies the output file to write to. The default is");
+		System.err.println("                      docs.tex in the current directory.");
+		System.err.println("-see <text>           Text to use for references created from inline tags.");
+		System.err.println("-See <text>           Text to use for references created from block tags.");
+		System.err.println("-index <indexfile>    Write an index of all symbols to indexfile.");
+		System.err.println("-labelprefix <prefix> Prefix of all labels. The default is \"texdoclet:\".");
+		System.err.println("-variant <outfile> <optionsfile>");
+		System.err.println("                      Additionally render to outfile with the rendering options");
+		System.err.println("                      in optionsfile (one per line).");
+		System.err.println("-codedir <dir>        Write <pre> blocks of html files to dir.");
+		System.err.println("-imagedir <dir>       Convert images of html files to PNG files in dir.");
+		System.err.println("-templates <file>     Use the output templates in file instead of the defaults.");
+		System.err.println("-splitdir <dir>       Write each package to its own file in dir.");
+		System.err.println("-threads <n>          Render the classes on n threads.");
+		System.err.println("-summary              Only write the first sentences of the comments.");
+		System.err.println("-strictrefs           Fail if references to undocumented elements remain.");
+		System.exit(1);
+	}
+
+	/**
+	 * Renders (and merges) model files written by TexDoclet.
+	 */
+	public static void main(String[] args) {
+		String outfile = "docs.tex";
+		List<String[]> options = new ArrayList<String[]>();
+		List<String> models = new ArrayList<String>();
+		for (int i = 0; i < args.length; ++i) {
+			String arg = args[i];
+			if (arg.startsWith("-")) {
+				int length = TexDoclet.docletOptionLength(arg);
+				if (length <= 0 || i + length > args.length)
+					usage();
+				String[] option = new String[length];
+				System.arraycopy(args, i, option, 0, length);
+				if (arg.equals("-output"))
+					outfile = option[1];
+				options.add(option);
+				i += length - 1;
+			} else {
+				models.add(arg);
+			}
+		}
+		if (models.isEmpty())
+			usage();
+
+		List<DocModel> shards = new ArrayList<DocModel>();
+		for (String filename : models) {
+			try {
+				shards.add(DocModel.read(filename));
+			} catch (IOException e) {
+				System.err.println("Couldn't read model file '" + filename + "': " + e.getMessage());
+				System.exit(1);
+			}
+		}
+		DocModel model = DocModel.mergeShards(shards);
+
+		boolean unresolved;
+		try {
+			unresolved = renderAll(model, outfile, options.toArray(new String[options.size()][]));
+		} catch (IOException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		for (String[] option : options) {
+			if (option[0].equals("-strictrefs") && unresolved)
+				System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package org.wonderly.doclets;
+
+import com.sun.javadoc.Tag;
+
+/**
+ * Converts the tags of one name into latex. Taglets are found with
+ * {@link java.util.ServiceLoader}: list the implementing classes in a
+ * <code>META-INF/services/org.wonderly.doclets.TexTaglet</code> file on the
+ * docletpath. A taglet replaces the built-in handling of a tag with the same
+ * name.
+ *
+ * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
+ */
+public interface TexTaglet {
+	/**
+	 * Returns the name of the tag without the <code>@</code>, like
+	 * <code>since</code> or <code>code</code>.
+	 */
+	String getName();
+
+	/**
+	 * Returns true for inline tags like <code>{&#64;code ...}</code>, false
+	 * for block tags like <code>&#64;since</code>.
+	 */
+	boolean isInlineTag();
+
+	/**
+	 * Returns the latex for tags. Inline taglets are called for every single
+	 * tag, block taglets once with all tags of their name in a comment.
+	 * Returning null drops the tags.
+	 *
+	 * @param taglets
+	 *            helps converting the text of the tags
+	 */
+	String toTex(Tag[] tags, Taglets taglets);
+}
@@ -0,0 +1,124 @@
+package org.wonderly.doclets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.wonderly.doclets.DocModel.Use;
+
+/**
+ * Records which members use the documented types in their signature. Types
+ * and members are numbered, the uses of every type are kept in a growing int
+ * array of encoded (member, kind) pairs, so the index stays small even for
+ * many members.
+ *
+ * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
+ */
+class TypeUses {
+	/** type of a field */
+	static final int FIELD = 0;
+	/** type of a parameter */
+	static final int PARAMETER = 1;
+	/** return type of a method */
+	static final int RETURN = 2;
+	private static final String[] KINDS = { "field", "parameter", "return" };
+
+	private final Map<String, Integer> classIds = new HashMap<String, Integer>();
+	private final List<String> classNames = new ArrayList<String>();
+	/** member id &lt;&lt; 2 | kind, for each class id */
+	private int[][] uses = new int[0][];
+	private int[] counts = new int[0];
+	/** text and label of each member id */
+	private final List<String> memberTexts = new ArrayList<String>();
+	private final List<String> memberLabels = new ArrayList<String>();
+
+	/**
+	 * Assigns an id to a documented type, returns the existing id if it has
+	 * one already.
+	 */
+	int addClass(String qualifiedName) {
+		Integer id = classIds.get(qualifiedName);
+		if (id != null)
+			return id;
+		id = classIds.size();
+		classIds.put(qualifiedName, id);
+		classNames.add(qualifiedName);
+		if (id == uses.length) {
+			int size = Math.max(16, 2 * id);
+			uses = Arrays.copyOf(uses, size);
+			counts = Arrays.copyOf(counts, size);
+		}
+		return id;
+	}
+
+	/** Returns the id of a documented type or -1 */
+	int classId(String qualifiedName) {
+		Integer id = classIds.get(qualifiedName);
+		return id != null ? id : -1;
+	}
+
+	/** Returns the number of types with an id */
+	int classCount() {
+		return classNames.size();
+	}
+
+	/** Returns the qualified name of the type with an id */
+	String className(int id) {
+		return classNames.get(id);
+	}
+
+	/**
+	 * Adds a member which uses types and returns its id.
+	 *
+	 * @param text
+	 *            latex text of the member
+	 * @param label
+	 *            label of the member (without prefix)
+	 */
+	int addMember(String text, String label) {
+		memberTexts.add(text);
+		memberLabels.add(label);
+		return memberTexts.size() - 1;
+	}
+
+	/**
+	 * Records that a member uses a type. Repeated uses of the same kind
+	 * (like two parameters of the type) are recorded once.
+	 */
+	void addUse(int classId, int memberId, int kind) {
+		int use = memberId << 2 | kind;
+		int[] list = uses[classId];
+		int count = counts[classId];
+		if (list == null) {
+			list = new int[4];
+			uses[classId] = list;
+		} else if (list[count - 1] == use) {
+			return;
+		} else if (count == list.length) {
+			list = Arrays.copyOf(list, 2 * count);
+			uses[classId] = list;
+		}
+		list[count] = use;
+		counts[classId] = count + 1;
+	}
+
+	/**
+	 * Returns the uses of a type sorted by kind and member text.
+	 */
+	List<Use> uses(int classId) {
+		int count = counts[classId];
+		if (count == 0)
+			return Collections.emptyList();
+		List<Use> res = new ArrayList<Use>(count);
+		int[] list = uses[classId];
+		for (int i = 0; i < count; ++i) {
+			int member = list[i] >>> 2;
+			res.add(new Use(KINDS[list[i] & 3], memberTexts.get(member), memberLabels.get(member)));
+		}
+		Collections.sort(res, DocModel.USE_ORDER);
+		return res;
+	}
+}
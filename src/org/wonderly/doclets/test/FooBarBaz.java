@@ -0,0 +1,9 @@
+package org.wonderly.doclets.test;
+
+/**
+ * An interface extending another one, to test the known subtypes.
+ */
+public interface FooBarBaz extends FooBar {
+	/** does nothing either */
+	void baz();
+}
@@ -0,0 +1,10 @@
+package org.wonderly.doclets.test;
+
+/**
+ * Implements {@link FooBar} through its superclass and {@link FooBarBaz}
+ * directly.
+ */
+public class SpecialTestClass extends TestClass implements FooBarBaz {
+	public void baz() {
+	}
+}
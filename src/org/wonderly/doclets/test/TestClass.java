@@ -3,9 +3,26 @@ package org.wonderly.doclets.test;
 /**
  * Hällö this is just a class to test texdoclet...
  * This class implements the interface {@see FooBar}!
+ * <img src="doc-files/boxes.gif" alt="Two boxes">
  * @author matze
+ * @since 0.9.4
  */
 public class TestClass implements FooBar {
+	/**
+	 * Largest supported size ({@value}), sizes {@code <= 0} are invalid.
+	 */
+	public static final int MAX_SIZE = 1 << 10;
+
+	/**
+	 * Default size, {@value #MAX_SIZE} divided by {@value TestClass#FACTOR}.
+	 * @deprecated Use {@link #MAX_SIZE} instead.
+	 */
+	@Deprecated
+	public static final String DEFAULT_NAME = "default \"name\"";
+
+	/** Divisor for the default size */
+	public static final long FACTOR = 4L;
+
 	/**
 	 * <b>Warning:</b> This is <em>NOT</em> considered good documentation style. It's way too verbose to be usefull in
 	 * practice. Anyway this is just here to test texdoclet...
@@ -43,6 +60,7 @@ public class TestClass implements FooBar {
 	 *         summands.
 	 * @throws IllegalArgumentException if a is less than 0.
 	 * @see TestClass
+	 * @listing
 	 */
 	public int addints(int a, int b) {
 		if (a < 0) throw new IllegalArgumentException();
@@ -57,6 +75,11 @@ public class TestClass implements FooBar {
 	 * <li><b><tt>bold tt</tt></b></li>
 	 * <li><strong>strong</strong></li>
 	 * </ul> 
+	 * The sum of two numbers is computed by {@link #addints(int, int)}.
+	 * Formats are usually kept in a {@link java.util.Map#get(Object) map}.
+	 *
+	 * @see AnimalKind#getDescription()
+	 * @see java.util.List
 	 */
 	public void formats() {
 	}
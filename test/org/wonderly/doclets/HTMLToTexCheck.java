@@ -0,0 +1,235 @@
+package org.wonderly.doclets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks {@link HTMLToTex} against malformed input and super-linear running
+ * times. Fixed malformed tables and random tag soups built from a fixed seed
+ * are converted through the string and the streaming converter, exceptions,
+ * unbalanced braces and lengths defined twice in the output fail. The scaling check converts
+ * inputs repeating one construct at doubling sizes and fails if a doubling
+ * takes much more than twice the time.
+ *
+ * <pre>
+ * java -cp bin:bin-test:tools.jar org.wonderly.doclets.HTMLToTexCheck [seed [soups]]
+ * </pre>
+ *
+ * Exits with status 1 if a check fails.
+ *
+ * @author <a href="mailto:matthias.braun@kit.edu">Matthias Braun</a>
+ */
+public class HTMLToTexCheck {
+	private static final String[] TAGS = { "p", "br", "b", "i", "em", "strong", "code", "tt", "pre",
+			"a href=\"x\"", "a href=\"\"", "a name=\"n\"", "font color=\"red\"", "font size=\"q\"",
+			"table", "table border", "table border=\"x\"", "tr", "td", "td colspan=\"2\"",
+			"td colspan=\"99999\"", "td align=\"right\"", "th", "ul", "ol", "li", "dl", "dt", "dd",
+			"h1", "h3", "hr", "hr size=\"x\"", "img", "img src=\"nowhere.png\"", "blockquote", "sup",
+			"sub", "center", "body", "html" };
+	private static final String[] TEXTS = { "text", " ", "\n", "{", "}", "\\", "$", "%", "#", "_", "^",
+			"~", "&amp;", "&lt;", "&gt;", "&nbsp;", "&#64;", "&unknown;", "&", "<", ">", "\"", "'",
+			"{@code x}", "{@link Object}", "{@code", "<!--", "-->", "ä" };
+
+	/** malformed tables, which the table handling once crashed on */
+	private static final String[] TABLES = { "<table><tr><td><table><tr><td>x</table><td>y</table>",
+			"<table><tr><td><table><tr><td><table><tr><td>x</table></table></table>",
+			"<table><tr><th><table><tr><td>x</table><th>y<tr><td>z<td>w</table>",
+			"<table border><tr><td>a<td>b", "<table><tr><td><table><tr><td>x", "<table><tr><td>a</table></table>",
+			"</td></tr></table><table>", "<table><td colspan=3>a<tr><td><table><tr><td>b</td>",
+			"<table><tr><td>a<table><tr><td>b</table>c<td>d<tr><td>e<table><tr><td>f",
+			/* split into several tabulars repeating the header rows */
+			"<table><tr><th><table><tr><td>x</table><th>y" + repeat("<tr><td>a<td>b", 40) + "</table>",
+			"<table><tr><th>x<th>y<tr><th><table><tr><td>z</table>" + repeat("<tr><td>a<td>b", 40) + "</table>" };
+
+	/**
+	 * maximal growth of the time for an input twice as large: linear growth
+	 * is 2, quadratic growth 4
+	 */
+	private static final double MAX_GROWTH = 3;
+	/** number of doublings of the input size */
+	private static final int DOUBLINGS = 3;
+	/** minimal time of the smallest input, so the timer resolution does not matter */
+	private static final double MIN_MILLIS = 20;
+
+	private static final Pattern NEWLENGTH = Pattern.compile("\\\\newlength\\{([^}]*)\\}");
+
+	private static boolean failed = false;
+
+	public static void main(String[] args) throws IOException {
+		long seed = args.length > 0 ? Long.parseLong(args[0]) : 4711;
+		int soups = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+		/* the converter warns about every malformed tag */
+		PrintStream err = System.err;
+		System.setErr(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+		}));
+		try {
+			tables();
+			fuzz(seed, soups);
+			scaling();
+		} finally {
+			System.setErr(err);
+		}
+		if (failed)
+			System.exit(1);
+		System.out.println("HTMLToTex checks passed");
+	}
+
+	private static void fail(String message, String input) {
+		failed = true;
+		String excerpt = input.length() > 300 ? input.substring(0, 300) + "..." : input;
+		System.out.println("FAILED: " + message + "\n  input: " + excerpt.replace("\n", "\\n"));
+	}
+
+	/**
+	 * Converts the malformed tables through both converters.
+	 */
+	private static void tables() {
+		for (int i = 0; i < TABLES.length; ++i) {
+			convert(TABLES[i], "table " + i);
+		}
+		System.out.println("Converted " + TABLES.length + " malformed tables");
+	}
+
+	/**
+	 * Converts random tag soups through both converters.
+	 */
+	private static void fuzz(long seed, int soups) {
+		Random random = new Random(seed);
+		for (int i = 0; i < soups && !failed; ++i) {
+			convert(soup(random, 1 + random.nextInt(60)), "soup " + i + " of seed " + seed);
+		}
+		System.out.println("Converted " + soups + " tag soups of seed " + seed);
+	}
+
+	/**
+	 * Converts an input through both converters and checks the output.
+	 */
+	private static void convert(String input, String name) {
+		try {
+			check(HTMLToTex.convert(input, new ConversionContext()), "string converter", input);
+			StringWriter out = new StringWriter();
+			HTMLToTex.convert(new StringReader(input), out, null, new ConversionContext());
+			check(out.toString(), "streaming converter", input);
+		} catch (Exception e) {
+			fail(name + " threw " + e, input);
+			e.printStackTrace(System.out);
+		}
+	}
+
+	private static String soup(Random random, int parts) {
+		StringBuilder res = new StringBuilder();
+		for (int p = 0; p < parts; ++p) {
+			switch (random.nextInt(4)) {
+			case 0:
+				res.append('<').append(TAGS[random.nextInt(TAGS.length)]).append('>');
+				break;
+			case 1:
+				String tag = TAGS[random.nextInt(TAGS.length)];
+				int space = tag.indexOf(' ');
+				res.append("</").append(space < 0 ? tag : tag.substring(0, space)).append('>');
+				break;
+			default:
+				res.append(TEXTS[random.nextInt(TEXTS.length)]);
+				break;
+			}
+		}
+		return res.toString();
+	}
+
+	/**
+	 * Checks that the braces of latex output are balanced, ignoring escaped
+	 * braces, and that no length is defined twice.
+	 */
+	private static void check(String latex, String converter, String input) {
+		Set<String> lengths = new HashSet<String>();
+		Matcher m = NEWLENGTH.matcher(latex);
+		while (m.find()) {
+			if (!lengths.add(m.group(1))) {
+				fail("length " + m.group(1) + " defined twice by the " + converter, input);
+				break;
+			}
+		}
+		int depth = 0;
+		for (int i = 0; i < latex.length(); ++i) {
+			char c = latex.charAt(i);
+			if (c == '\\')
+				++i;
+			else if (c == '{')
+				++depth;
+			else if (c == '}' && --depth < 0)
+				break;
+		}
+		if (depth != 0)
+			fail("unbalanced braces from the " + converter, input);
+	}
+
+	/**
+	 * Converts inputs repeating a construct n, 2n, 4n ... times and compares
+	 * the times of each doubling. The converter is warmed up first and n is
+	 * chosen so the smallest input takes at least {@link #MIN_MILLIS}.
+	 */
+	private static void scaling() {
+		String[][] constructs = { { "text", "Some text with &amp; entities &lt;b&gt; and <b>tags</b>. " },
+				{ "tables", "<table border><tr><td>a<td colspan=2>b<tr><td>c<td>d<td>e</table>" },
+				{ "nested tables", "<table><tr><td><table><tr><td>x</table><td>y</table>" },
+				{ "unmatched closing tags", "</b></i></table></tr></td></ul>" },
+				{ "unclosed tags", "<b><i><font color=red><ul><li>" },
+				{ "attributes", "<img src=\"a.png\" width=1 height=2 alt=\"an image\" title=\"t\">" },
+				{ "lists", "<ul><li>one<li>two<ol><li>three</ol></ul>" } };
+		for (String[] construct : constructs) {
+			/* the first conversions run interpreted */
+			for (int i = 0; i < 20; ++i) {
+				time(construct[1], 200, 1);
+			}
+			int repeat = 200;
+			double previous = time(construct[1], repeat, 5);
+			while (previous < MIN_MILLIS) {
+				repeat *= 2;
+				previous = time(construct[1], repeat, 5);
+			}
+			StringBuilder times = new StringBuilder(String.format("%-24s %8.1f ms", construct[0], previous));
+			for (int d = 0; d < DOUBLINGS; ++d) {
+				repeat *= 2;
+				double current = time(construct[1], repeat, 5);
+				double growth = current / previous;
+				times.append(String.format(" %8.1f ms x%.1f", current, growth));
+				if (growth > MAX_GROWTH)
+					fail(construct[0] + " grew " + growth + " times for " + repeat + " instead of " + repeat / 2
+							+ " repeats", construct[1]);
+				previous = current;
+			}
+			System.out.println(times);
+		}
+	}
+
+	private static String repeat(String construct, int repeat) {
+		StringBuilder res = new StringBuilder(construct.length() * repeat);
+		for (int i = 0; i < repeat; ++i) {
+			res.append(construct);
+		}
+		return res.toString();
+	}
+
+	/** Returns the fastest of <code>runs</code> conversions in milliseconds */
+	private static double time(String construct, int repeat, int runs) {
+		String html = repeat(construct, repeat);
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < runs; ++run) {
+			long start = System.nanoTime();
+			HTMLToTex.convert(html, new ConversionContext());
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best / 1e6;
+	}
+}